@@ -5,11 +5,26 @@ class AstPrinter implements Expr.Visitor<String> {
         return expr.accept(this);
     }
 
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + expr.name.lexeme, expr.value);
+    }
+
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        Expr[] parts = new Expr[expr.arguments.size() + 1];
+        parts[0] = expr.callee;
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            parts[i + 1] = expr.arguments.get(i);
+        }
+        return parenthesize("call", parts);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
@@ -31,6 +46,16 @@ class AstPrinter implements Expr.Visitor<String> {
         return expr.name.lexeme;
     }
 
+    @Override
+    public String visitSharedExpr(Expr.Shared expr) {
+        return parenthesize("shared#" + expr.id, expr.expression);
+    }
+
+    @Override
+    public String visitSumExpr(Expr.Sum expr) {
+        return parenthesize("sum", expr.terms.toArray(new Expr[0]));
+    }
+
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
         
@@ -0,0 +1,229 @@
+package Lox;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import Lox.Tool.GenerateModel;
+
+// Times each phase on generated models from 10^3 statements up to a limit,
+// so scaling regressions show up. For every size and phase it reports the
+// median time over the repetitions, throughput in statements per second,
+// bytes allocated, the heap the phase's result keeps alive, and collections
+// with their pause time. Interpretation also reports percentiles of the
+// time each top-level statement takes, measured on a second, untimed run so
+// reading the clock around every statement doesn't slow the timed one.
+//
+// Models grow by adding days, each a copy of the same network. Given a
+// number of days, they grow by adding roots instead, so the network
+// itself gets wider. The last column is the scaling
+// exponent against the previous size: near 1 is linear, and anything
+// clearly above it is a regression worth chasing.
+//
+// Models of 10^7 statements need a heap of several gigabytes.
+class Benchmark {
+    private static final String[] PHASES = { "scan", "parse", "check", "run" };
+
+    // One phase's measurements at one size, over all repetitions.
+    private static final class Measurement {
+        final long[] nanos;
+        final long[] allocated;
+        long retained = 0;
+        long collections = 0;
+        long collectionMillis = 0;
+        final TDigest latencies = new TDigest(100);
+
+        Measurement(int repeat) {
+            nanos = new long[repeat];
+            allocated = new long[repeat];
+        }
+
+        double seconds() {
+            return median(nanos) / 1e9;
+        }
+    }
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        long limit = 1_000_000;
+        int repeat = 3;
+        int days = 0;
+        GenerateModel.Shape shape = new GenerateModel.Shape();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) usage();
+                long value = Long.parseLong(args[i + 1]);
+                switch (args[i]) {
+                    case "--to": limit = value; break;
+                    case "--repeat": repeat = (int) value; break;
+                    case "--roots": shape.roots = (int) value; break;
+                    case "--depth": shape.depth = (int) value; break;
+                    case "--fan-in": shape.fanIn = (int) value; break;
+                    case "--days": days = (int) value; break;
+                    case "--terms": shape.terms = (int) value; break;
+                    default: usage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (limit < 1000 || repeat < 1 || shape.roots < 1 || shape.depth < 1 || shape.fanIn < 2 || shape.terms < 1
+                || days < 0) {
+            usage();
+        }
+
+        // Warms up the JIT so the smallest size isn't timed on the interpreter.
+        measure(model(shape, days, 1000), 1000, 1);
+
+        System.out.printf("%10s %-6s %10s %12s %9s %9s %9s %10s %9s %5s %7s %6s%n", "statements", "phase",
+            "median ms", "stmts/s", "p50 us", "p99 us", "max us", "alloc MB", "live MB", "gcs", "gc ms", "scale");
+        Measurement[] previous = null;
+        long previousSize = 0;
+        for (long target = 1000; target <= limit; target *= 10) {
+            String source = model(shape, days, target);
+            long size = GenerateModel.statements(shape);
+            Measurement[] phases = measure(source, size, repeat);
+            for (int p = 0; p < PHASES.length; p++) {
+                Measurement m = phases[p];
+                boolean timed = p == PHASES.length - 1;
+                String scale = previous == null ? "-" : String.format("%.2f",
+                    Math.log(m.seconds() / previous[p].seconds()) / Math.log((double) size / previousSize));
+                System.out.printf("%10d %-6s %10.1f %12.0f %9s %9s %9s %10.1f %9.1f %5d %7d %6s%n", size, PHASES[p],
+                    m.seconds() * 1e3, size / m.seconds(),
+                    timed ? micros(m.latencies.quantile(0.5)) : "-",
+                    timed ? micros(m.latencies.quantile(0.99)) : "-",
+                    timed ? micros(m.latencies.quantile(1)) : "-",
+                    median(m.allocated) / 1e6, m.retained / 1e6, m.collections / repeat, m.collectionMillis / repeat,
+                    scale);
+            }
+            previous = phases;
+            previousSize = size;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: benchmark [--to statements] [--repeat n] [--roots n] [--depth n] [--fan-in n] [--days n] [--terms n]");
+        System.exit(64);
+    }
+
+    // A model of about the given number of statements, grown by adding days
+    // or, when days isn't zero, by adding roots to that many days.
+    private static String model(GenerateModel.Shape shape, int days, long target) {
+        if (days == 0) {
+            shape.days = 1;
+            long perDay = GenerateModel.statements(shape) - 1;
+            shape.days = (int) Math.max(1, target / perDay);
+        } else {
+            shape.days = days;
+            // The most roots that stay within the target, and at least one.
+            int low = 1;
+            int high = Integer.MAX_VALUE / 2;
+            while (low < high) {
+                shape.roots = low + (high - low + 1) / 2;
+                if (GenerateModel.statements(shape) <= target) {
+                    low = shape.roots;
+                } else {
+                    high = shape.roots - 1;
+                }
+            }
+            shape.roots = low;
+        }
+        StringBuilder source = new StringBuilder();
+        GenerateModel.generate(shape, source);
+        return source.toString();
+    }
+
+    private static Measurement[] measure(String source, long size, int repeat) {
+        Measurement[] phases = new Measurement[PHASES.length];
+        for (int p = 0; p < phases.length; p++) {
+            phases[p] = new Measurement(repeat);
+        }
+        for (int r = 0; r < repeat; r++) {
+            Context context = Context.silent();
+
+            long before = start();
+            long[] counters = counters();
+            long started = System.nanoTime();
+            List<Token> tokens = new Scanner(source, context).scanTokens();
+            before = stop(phases[0], r, started, counters, before);
+
+            counters = counters();
+            started = System.nanoTime();
+            List<Stmt> statements = new Parser(tokens, context).parseStatements();
+            before = stop(phases[1], r, started, counters, before);
+            if (context.hadError) throw new IllegalStateException("Generated model doesn't parse.");
+            tokens = null;
+
+            counters = counters();
+            started = System.nanoTime();
+            new TypeChecker(context).check(statements);
+            before = stop(phases[2], r, started, counters, before);
+
+            counters = counters();
+            started = System.nanoTime();
+            new Interpreter(context).interpret(statements);
+            stop(phases[3], r, started, counters, before);
+            if (context.hadError || context.hadRuntimeError) throw new IllegalStateException("Generated model failed.");
+
+            Interpreter interpreter = new Interpreter(context);
+            TDigest latencies = phases[3].latencies;
+            for (Stmt stmt : statements) {
+                long statement = System.nanoTime();
+                interpreter.execute(stmt);
+                latencies.add(System.nanoTime() - statement);
+            }
+        }
+        return phases;
+    }
+
+    // Collects garbage and returns the heap still in use.
+    private static long start() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // Allocated bytes, collections and collection milliseconds so far.
+    private static long[] counters() {
+        long[] counters = { allocated(), 0, 0 };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counters[1] += Math.max(0, collector.getCollectionCount());
+            counters[2] += Math.max(0, collector.getCollectionTime());
+        }
+        return counters;
+    }
+
+    // Records a phase that began at started, and returns the heap in use
+    // after it, which the next phase starts from.
+    private static long stop(Measurement m, int repetition, long started, long[] counters, long before) {
+        m.nanos[repetition] = System.nanoTime() - started;
+        long[] now = counters();
+        m.allocated[repetition] = now[0] - counters[0];
+        m.collections += now[1] - counters[1];
+        m.collectionMillis += now[2] - counters[2];
+        long after = start();
+        m.retained = Math.max(m.retained, after - before);
+        return after;
+    }
+
+    private static long allocated() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1f", nanos / 1e3);
+    }
+}
@@ -0,0 +1,317 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Flattens a parsed program into a Chunk for the VM. Every variable name is
+// resolved to a fixed slot at compile time.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private int[] code = new int[256];
+    private int count = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+    private double[] numbers = new double[16];
+    private int numberCount = 0;
+    private final List<Object> refs = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> slotNames = new ArrayList<>();
+    // Block scopes, innermost last; each block-local declaration gets its own slot.
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+    private final Interpreter interpreter;
+
+    BytecodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            stmt.accept(this);
+        }
+        return new Chunk(Arrays.copyOf(code, count), Arrays.copyOf(numbers, numberCount),
+            refs.toArray(), slotNames.toArray(new String[0]), maxDepth);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Expressions
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        emitValue(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        switch (expr.operator.type) {
+            case MINUS: emit(Chunk.NEGATE, ref(expr.operator)); break;
+            case BANG: emit(Chunk.NOT); break;
+            default:
+                emit(Chunk.POP);
+                emit(Chunk.REF, ref(VM.NIL));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        // The left spine of a long formula is compiled in a loop rather
+        // than by recursing once per operator; the VM's stack does the rest.
+        Expr.Binary[] spine = expr.spine();
+        compile(spine[0].left);
+        for (Expr.Binary binary : spine) {
+            compile(binary.right);
+            operator(binary);
+        }
+        return null;
+    }
+
+    private void operator(Expr.Binary expr) {
+        int operator = ref(expr.operator);
+        switch (expr.operator.type) {
+            case PLUS: emit(Chunk.ADD, operator); break;
+            case MINUS: emit(Chunk.SUBTRACT, operator); break;
+            case STAR: emit(Chunk.MULTIPLY, operator); break;
+            case SLASH: emit(Chunk.DIVIDE, operator); break;
+            case EQUAL_EQUAL: emit(Chunk.EQUAL); break;
+            case BANG_EQUAL: emit(Chunk.NOT_EQUAL); break;
+            case GREATER: emit(Chunk.GREATER, operator); break;
+            case GREATER_EQUAL: emit(Chunk.GREATER_EQUAL, operator); break;
+            case LESS: emit(Chunk.LESS, operator); break;
+            case LESS_EQUAL: emit(Chunk.LESS_EQUAL, operator); break;
+            default:
+                // Operators the tree walker does not evaluate produce nil there too.
+                emit(Chunk.POP);
+                emit(Chunk.POP);
+                emit(Chunk.REF, ref(VM.NIL));
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        emit(Chunk.ASSIGN, resolve(expr.name.lexeme), ref(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        throw unsupported(expr.paren);
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        emit(Chunk.LOAD, resolve(expr.name.lexeme), ref(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSumExpr(Expr.Sum expr) {
+        for (Expr term : expr.terms) {
+            compile(term);
+        }
+        int count = expr.terms.size();
+        emit(Chunk.SUM, count, ref(expr.operators.toArray(new Token[0])));
+        // SUM pops all its terms, not the two stackEffect assumes.
+        depth -= count - 2;
+        return null;
+    }
+
+    @Override
+    public Void visitSharedExpr(Expr.Shared expr) {
+        // Lox rejects --cse with --vm; a shared node from elsewhere is
+        // simply recomputed in place.
+        compile(expr.expression);
+        return null;
+    }
+
+    // Statements
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw unsupported(stmt.name);
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        throw unsupported(stmt.keyword);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = count;
+        compile(stmt.condition);
+        emit(Chunk.JUMP_IF_FALSE, -1);
+        int exitJump = count - 1;
+        stmt.body.accept(this);
+        emit(Chunk.JUMP, loopStart);
+        code[exitJump] = count;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        if (stmt.expression instanceof Expr.Assign) {
+            emit(Chunk.POP);
+        } else if (stmt.expression instanceof Expr.Variable) {
+            String name = ((Expr.Variable) stmt.expression).name.lexeme;
+            emit(Chunk.PRINT_FLOW, ref(interpreter.autoLabel(name)));
+        } else {
+            emit(Chunk.PRINT_RESULT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationStmt(Stmt.RiverDeclaration stmt) {
+        emit(Chunk.RIVER, declare(stmt.name.lexeme), ref(stmt.type.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitRiverFlowStmt(Stmt.RiverFlow stmt) {
+        emit(Chunk.FLOWS, ref(stmt.from.lexeme), ref(stmt.to.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationStmt(Stmt.RiverCombination stmt) {
+        emit(Chunk.COMBINE, ref(stmt.name.lexeme), ref(interpreter.joinSources(stmt.sources)));
+        return null;
+    }
+
+    @Override
+    public Void visitRainfallDeclarationStmt(Stmt.RainfallDeclaration stmt) {
+        emit(Chunk.CONSTANT, number(stmt.value.number));
+        emit(Chunk.RAINFALL, slot("rainfall"));
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationWithFlowStmt(Stmt.RiverDeclarationWithFlow stmt) {
+        emit(Chunk.CONSTANT, number(stmt.flowRate.number));
+        emit(Chunk.RIVER_WITH_FLOW, declare(stmt.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationExprStmt(Stmt.RiverCombinationExpr stmt) {
+        compile(stmt.expression);
+        emit(Chunk.COMBINATION, declare(stmt.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(Chunk.REF, ref(VM.NIL));
+        }
+        emit(Chunk.STORE, declare(stmt.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+        compile(stmt.algorithm);
+        emit(Chunk.STORE, declare(stmt.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitLabelStmt(Stmt.Label stmt) {
+        emit(Chunk.LABEL, ref(stmt.name.lexeme), ref(stmt.label));
+        return null;
+    }
+
+    private RuntimeError unsupported(Token token) {
+        return new RuntimeError(token, "Functions are not supported by the bytecode VM.");
+    }
+
+    // Emission helpers
+    private void emitValue(Object value) {
+        if (value instanceof Double) {
+            emit(Chunk.CONSTANT, number((double) value));
+        } else {
+            emit(Chunk.REF, ref(value == null ? VM.NIL : value));
+        }
+    }
+
+    private void emit(int... words) {
+        if (count + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, count + words.length));
+        }
+        for (int word : words) {
+            code[count++] = word;
+        }
+        depth += Chunk.stackEffect(words[0]);
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private int number(double value) {
+        if (numberCount == numbers.length) {
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        }
+        numbers[numberCount] = value;
+        return numberCount++;
+    }
+
+    private int ref(Object value) {
+        refs.add(value);
+        return refs.size() - 1;
+    }
+
+    private int declare(String name) {
+        if (scopes.isEmpty()) return slot(name);
+
+        Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+        Integer slot = scope.get(name);
+        if (slot == null) {
+            slot = slotNames.size();
+            scope.put(name, slot);
+            slotNames.add(name);
+        }
+        return slot;
+    }
+
+    private int resolve(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name);
+            if (slot != null) return slot;
+        }
+        return slot(name);
+    }
+
+    // The global slot for a name.
+    private int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slotNames.size();
+            slots.put(name, slot);
+            slotNames.add(name);
+        }
+        return slot;
+    }
+}
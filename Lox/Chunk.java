@@ -0,0 +1,72 @@
+package Lox;
+
+// A compiled program: a flat instruction stream plus its constant pools.
+// Operands follow their opcode inline in code[].
+class Chunk {
+    // Values
+    static final int CONSTANT = 0;       // index into numbers
+    static final int REF = 1;            // index into refs (string, boolean or nil)
+    static final int LOAD = 2;           // slot, token
+    static final int STORE = 3;          // slot
+    static final int POP = 4;
+
+    // Arithmetic and comparison; each carries its operator token
+    static final int ADD = 5;
+    static final int SUBTRACT = 6;
+    static final int MULTIPLY = 7;
+    static final int DIVIDE = 8;
+    static final int NEGATE = 9;
+    static final int NOT = 10;
+    static final int EQUAL = 11;
+    static final int NOT_EQUAL = 12;
+    static final int GREATER = 13;
+    static final int LESS = 14;
+
+    // Dam and river stores and output
+    static final int RAINFALL = 15;      // slot
+    static final int RIVER = 16;         // slot, type ref
+    static final int RIVER_WITH_FLOW = 17; // slot
+    static final int FLOWS = 18;         // from ref, to ref
+    static final int COMBINE = 19;       // name ref, sources ref
+    static final int COMBINATION = 20;   // slot
+    static final int PRINT_FLOW = 21;    // label ref
+    static final int PRINT_RESULT = 22;
+    static final int LABEL = 23;         // name ref, label ref
+
+    // Additions for loops and assignment
+    static final int GREATER_EQUAL = 24;
+    static final int LESS_EQUAL = 25;
+    static final int ASSIGN = 26;        // slot, token; leaves the value on the stack
+    static final int JUMP = 27;          // target
+    static final int JUMP_IF_FALSE = 28; // target
+
+    // Wide river combinations
+    static final int SUM = 29;           // count, operator tokens ref; pops count terms
+
+    final int[] code;
+    final double[] numbers;
+    final Object[] refs;
+    final String[] slotNames;
+    final int maxStack;
+
+    Chunk(int[] code, double[] numbers, Object[] refs, String[] slotNames, int maxStack) {
+        this.code = code;
+        this.numbers = numbers;
+        this.refs = refs;
+        this.slotNames = slotNames;
+        this.maxStack = maxStack;
+    }
+
+    // Net change in stack depth caused by an opcode.
+    static int stackEffect(int opcode) {
+        switch (opcode) {
+            case CONSTANT: case REF: case LOAD:
+                return 1;
+            case NEGATE: case NOT: case RIVER: case FLOWS: case COMBINE: case LABEL:
+            case ASSIGN: case JUMP:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+}
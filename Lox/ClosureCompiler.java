@@ -0,0 +1,319 @@
+package Lox;
+
+import java.util.List;
+
+// Converts a parsed program once into a tree of pre-bound lambdas so that
+// repeated runs skip the visitor dispatch and operator switches entirely.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<Runnable> {
+    interface Node {
+        Object eval();
+    }
+
+    private final Interpreter interpreter;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Runnable compile(List<Stmt> statements) {
+        Runnable[] program = new Runnable[statements.size()];
+        for (int i = 0; i < program.length; i++) {
+            program[i] = statements.get(i).accept(this);
+        }
+        return () -> {
+            for (Runnable stmt : program) {
+                stmt.run();
+            }
+        };
+    }
+
+    Node compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Expressions
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return () -> value;
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = compile(expr.right);
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case MINUS:
+                if (expr.numeric) return () -> -(double) right.eval();
+                return () -> {
+                    Object value = right.eval();
+                    interpreter.checkNumberOperand(operator, value);
+                    return -(double) value;
+                };
+            case BANG: return () -> !interpreter.isTruthy(right.eval());
+        }
+        return () -> {
+            right.eval();
+            return null;
+        };
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary[] spine = expr.spine();
+        if (spine.length > Expr.Binary.MAX_NESTED_CHAIN) return chain(spine);
+
+        Node left = compile(expr.left);
+        Token operator = expr.operator;
+
+        // Unproven operands go through the interpreter's checked path.
+        if (!expr.numeric) {
+            Node right = compile(expr.right);
+            return () -> interpreter.binary(operator, left.eval(), right.eval());
+        }
+
+        // A numeric literal on the right is folded into the lambda itself.
+        if (expr.right instanceof Expr.Literal && ((Expr.Literal) expr.right).value instanceof Double) {
+            double right = (double) ((Expr.Literal) expr.right).value;
+            switch (operator.type) {
+                case PLUS: return () -> (double) left.eval() + right;
+                case MINUS: return () -> (double) left.eval() - right;
+                case STAR: return () -> (double) left.eval() * right;
+                case SLASH: return () -> (double) left.eval() / right;
+                case GREATER: return () -> (double) left.eval() > right;
+                case GREATER_EQUAL: return () -> (double) left.eval() >= right;
+                case LESS: return () -> (double) left.eval() < right;
+                case LESS_EQUAL: return () -> (double) left.eval() <= right;
+            }
+        }
+
+        Node right = compile(expr.right);
+        switch (operator.type) {
+            case PLUS: return () -> (double) left.eval() + (double) right.eval();
+            case MINUS: return () -> (double) left.eval() - (double) right.eval();
+            case STAR: return () -> (double) left.eval() * (double) right.eval();
+            case SLASH: return () -> (double) left.eval() / (double) right.eval();
+            case GREATER: return () -> (double) left.eval() > (double) right.eval();
+            case GREATER_EQUAL: return () -> (double) left.eval() >= (double) right.eval();
+            case LESS: return () -> (double) left.eval() < (double) right.eval();
+            case LESS_EQUAL: return () -> (double) left.eval() <= (double) right.eval();
+        }
+        return () -> interpreter.binary(operator, left.eval(), right.eval());
+    }
+
+    // A long left-leaning chain compiles to one loop over its operators,
+    // through the checked path, instead of a lambda per operator whose
+    // evaluation would recurse as deep as the formula is long.
+    private Node chain(Expr.Binary[] spine) {
+        int length = spine.length;
+        Node first = compile(spine[0].left);
+        Token[] operators = new Token[length];
+        Node[] rights = new Node[length];
+        for (int i = 0; i < length; i++) {
+            operators[i] = spine[i].operator;
+            rights[i] = compile(spine[i].right);
+        }
+        return () -> {
+            Object value = first.eval();
+            for (int i = 0; i < rights.length; i++) {
+                value = interpreter.binary(operators[i], value, rights[i].eval());
+            }
+            return value;
+        };
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        Token name = expr.name;
+        Node value = compile(expr.value);
+        return () -> {
+            Object result = value.eval();
+            interpreter.assign(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        Node callee = compile(expr.callee);
+        Node[] arguments = new Node[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        return () -> {
+            LoxFunction function = interpreter.function(expr, callee.eval());
+            Object[] frame = new Object[function.declaration.frameSize];
+            for (int i = 0; i < arguments.length; i++) {
+                frame[i] = arguments[i].eval();
+            }
+            return interpreter.call(function, frame);
+        };
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        Token name = expr.name;
+        return () -> interpreter.lookup(name);
+    }
+
+    @Override
+    public Node visitSharedExpr(Expr.Shared expr) {
+        int id = expr.id;
+        Node expression = compile(expr.expression);
+        return () -> {
+            Object value = interpreter.sharedValues[id];
+            if (value == Interpreter.UNSET) {
+                value = expression.eval();
+                interpreter.sharedValues[id] = value;
+            }
+            return value;
+        };
+    }
+
+    @Override
+    public Node visitSumExpr(Expr.Sum expr) {
+        List<Token> operators = expr.operators;
+        Node[] terms = new Node[expr.terms.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = compile(expr.terms.get(i));
+        }
+        return () -> Summation.add(interpreter, operators, terms.length, i -> terms[i].eval());
+    }
+
+    // Statements
+    @Override
+    public Runnable visitBlockStmt(Stmt.Block stmt) {
+        Runnable[] statements = new Runnable[stmt.statements.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = stmt.statements.get(i).accept(this);
+        }
+        return () -> {
+            Environment previous = interpreter.beginScope();
+            try {
+                for (Runnable statement : statements) {
+                    statement.run();
+                }
+            } finally {
+                interpreter.endScope(previous);
+            }
+        };
+    }
+
+    // Function bodies are executed by the interpreter's call path.
+    @Override
+    public Runnable visitFunctionStmt(Stmt.Function stmt) {
+        return () -> interpreter.execute(stmt);
+    }
+
+    @Override
+    public Runnable visitReturnStmt(Stmt.Return stmt) {
+        return () -> interpreter.execute(stmt);
+    }
+
+    @Override
+    public Runnable visitWhileStmt(Stmt.While stmt) {
+        Node condition = compile(stmt.condition);
+        Runnable body = stmt.body.accept(this);
+        return () -> {
+            while (interpreter.isTruthy(condition.eval())) {
+                body.run();
+            }
+        };
+    }
+
+    @Override
+    public Runnable visitExpressionStmt(Stmt.Expression stmt) {
+        Node expression = compile(stmt.expression);
+        if (stmt.expression instanceof Expr.Assign) {
+            return expression::eval;
+        }
+        if (stmt.expression instanceof Expr.Variable) {
+            String label = interpreter.autoLabel(((Expr.Variable) stmt.expression).name.lexeme);
+            return () -> interpreter.printFlow(label, expression.eval());
+        }
+        return () -> interpreter.printResult(expression.eval());
+    }
+
+    @Override
+    public Runnable visitRiverDeclarationStmt(Stmt.RiverDeclaration stmt) {
+        String name = stmt.name.lexeme;
+        String type = stmt.type.lexeme;
+        return () -> {
+            interpreter.define(name, type);
+            interpreter.printRiver(name, type);
+        };
+    }
+
+    @Override
+    public Runnable visitRiverFlowStmt(Stmt.RiverFlow stmt) {
+        String from = stmt.from.lexeme;
+        String to = stmt.to.lexeme;
+        return () -> interpreter.printRiverFlow(from, to);
+    }
+
+    @Override
+    public Runnable visitRiverCombinationStmt(Stmt.RiverCombination stmt) {
+        String name = stmt.name.lexeme;
+        String sources = interpreter.joinSources(stmt.sources);
+        return () -> interpreter.printCombination(name, sources);
+    }
+
+    @Override
+    public Runnable visitRainfallDeclarationStmt(Stmt.RainfallDeclaration stmt) {
+        Object value = stmt.value.number;
+        return () -> {
+            interpreter.setRainfall(value);
+            interpreter.printRainfall(value);
+        };
+    }
+
+    @Override
+    public Runnable visitRiverDeclarationWithFlowStmt(Stmt.RiverDeclarationWithFlow stmt) {
+        String name = stmt.name.lexeme;
+        Object flowRate = stmt.flowRate.number;
+        return () -> {
+            interpreter.define(name, flowRate);
+            interpreter.printRiverWithFlow(name, flowRate);
+        };
+    }
+
+    @Override
+    public Runnable visitRiverCombinationExprStmt(Stmt.RiverCombinationExpr stmt) {
+        String name = stmt.name.lexeme;
+        Node expression = compile(stmt.expression);
+        return () -> {
+            Object result = expression.eval();
+            interpreter.define(name, result);
+            interpreter.printCombinationResult(name, result);
+        };
+    }
+
+    @Override
+    public Runnable visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (stmt.initializer == null) {
+            return () -> interpreter.define(name, null);
+        }
+        Node initializer = compile(stmt.initializer);
+        return () -> interpreter.define(name, initializer.eval());
+    }
+
+    @Override
+    public Runnable visitDamStmt(Stmt.Dam stmt) {
+        String name = stmt.name.lexeme;
+        Node algorithm = compile(stmt.algorithm);
+        return () -> interpreter.define(name, algorithm.eval());
+    }
+
+    @Override
+    public Runnable visitLabelStmt(Stmt.Label stmt) {
+        String name = stmt.name.lexeme;
+        String label = stmt.label;
+        return () -> interpreter.label(name, label);
+    }
+}
@@ -0,0 +1,262 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds structurally equal subexpressions across all statements and
+// replaces each repeated one with an Expr.Shared node. The interpreter
+// computes a shared value once and reuses it until one of the variables it
+// reads is written again.
+class CommonSubexpressions implements Expr.Visitor<Integer> {
+    private static final int IMPURE = -1;
+
+    final List<Stmt> statements = new ArrayList<>();
+    // Variable name -> ids of the shared subexpressions that read it.
+    final Map<String, int[]> readers = new HashMap<>();
+    int count = 0;
+
+    // Value numbering: equal structures get equal numbers.
+    private final Map<String, Integer> structures = new HashMap<>();
+    private final Map<Expr, Integer> numbers = new IdentityHashMap<>();
+    private final List<Integer> uses = new ArrayList<>();
+    private final Map<Integer, Integer> sharedIds = new HashMap<>();
+
+    static CommonSubexpressions eliminate(List<Stmt> statements) {
+        CommonSubexpressions cse = new CommonSubexpressions();
+        for (Stmt stmt : statements) {
+            cse.number(stmt);
+        }
+        for (Stmt stmt : statements) {
+            cse.statements.add(cse.rewrite(stmt));
+        }
+        return cse;
+    }
+
+    private void number(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                number(statement);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            ((Stmt.While) stmt).condition.accept(this);
+            number(((Stmt.While) stmt).body);
+        } else {
+            Expr expr = expressionOf(stmt);
+            if (expr != null) expr.accept(this);
+        }
+    }
+
+    private static Expr expressionOf(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return ((Stmt.Expression) stmt).expression;
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).initializer;
+        if (stmt instanceof Stmt.Dam) return ((Stmt.Dam) stmt).algorithm;
+        if (stmt instanceof Stmt.RiverCombinationExpr) return ((Stmt.RiverCombinationExpr) stmt).expression;
+        return null;
+    }
+
+    // Numbering
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        return IMPURE;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        // Numbered bottom-up along the left spine, so long chains don't
+        // recurse once per operator.
+        Expr.Binary[] spine = expr.spine();
+        int left = spine[0].left.accept(this);
+        for (Expr.Binary binary : spine) {
+            int right = binary.right.accept(this);
+            if (left == IMPURE || right == IMPURE) {
+                left = IMPURE;
+            } else {
+                left = use(binary, "B" + binary.operator.type + ":" + left + ":" + right);
+            }
+        }
+        return left;
+    }
+
+    @Override
+    public Integer visitSumExpr(Expr.Sum expr) {
+        StringBuilder structure = new StringBuilder("S");
+        boolean impure = false;
+        for (Expr term : expr.terms) {
+            int number = term.accept(this);
+            impure |= number == IMPURE;
+            structure.append(':').append(number);
+        }
+        if (impure) return IMPURE;
+        return use(expr, structure.toString());
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        // Calls may have side effects, so neither they nor anything around them is shared.
+        return IMPURE;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return number("nil");
+        return number("L" + expr.value.getClass().getSimpleName() + ":" + expr.value);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int right = expr.right.accept(this);
+        if (right == IMPURE) return IMPURE;
+        return use(expr, "U" + expr.operator.type + ":" + right);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return number("V" + expr.name.lexeme);
+    }
+
+    @Override
+    public Integer visitSharedExpr(Expr.Shared expr) {
+        return expr.expression.accept(this);
+    }
+
+    private int number(String structure) {
+        Integer number = structures.get(structure);
+        if (number == null) {
+            number = uses.size();
+            structures.put(structure, number);
+            uses.add(0);
+        }
+        return number;
+    }
+
+    private int use(Expr expr, String structure) {
+        int number = number(structure);
+        uses.set(number, uses.get(number) + 1);
+        numbers.put(expr, number);
+        return number;
+    }
+
+    // Rewriting
+    private Stmt rewrite(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = new ArrayList<>();
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                statements.add(rewrite(statement));
+            }
+            return new Stmt.Block(statements);
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            return new Stmt.While(rewrite(loop.condition), rewrite(loop.body));
+        }
+        if (stmt instanceof Stmt.Expression) {
+            return new Stmt.Expression(rewrite(((Stmt.Expression) stmt).expression));
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.initializer == null) return var;
+            Stmt.Var rewritten = new Stmt.Var(var.name, rewrite(var.initializer));
+            rewritten.slot = var.slot;
+            return rewritten;
+        }
+        if (stmt instanceof Stmt.Dam) {
+            Stmt.Dam dam = (Stmt.Dam) stmt;
+            Stmt.Dam rewritten = new Stmt.Dam(dam.name, rewrite(dam.algorithm));
+            rewritten.slot = dam.slot;
+            return rewritten;
+        }
+        if (stmt instanceof Stmt.RiverCombinationExpr) {
+            Stmt.RiverCombinationExpr river = (Stmt.RiverCombinationExpr) stmt;
+            return new Stmt.RiverCombinationExpr(river.name, rewrite(river.expression));
+        }
+        return stmt;
+    }
+
+    private Expr rewrite(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary[] spine = ((Expr.Binary) expr).spine();
+            Expr rewritten = rewrite(spine[0].left);
+            for (Expr.Binary binary : spine) {
+                rewritten = share(binary, new Expr.Binary(rewritten, binary.operator, rewrite(binary.right)));
+            }
+            return rewritten;
+        }
+
+        Expr rewritten = expr;
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            rewritten = new Expr.Unary(unary.operator, rewrite(unary.right));
+        } else if (expr instanceof Expr.Grouping) {
+            rewritten = new Expr.Grouping(rewrite(((Expr.Grouping) expr).expression));
+        } else if (expr instanceof Expr.Sum) {
+            Expr.Sum sum = (Expr.Sum) expr;
+            List<Expr> terms = new ArrayList<>();
+            for (Expr term : sum.terms) {
+                terms.add(rewrite(term));
+            }
+            rewritten = new Expr.Sum(terms, sum.operators);
+        } else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            Expr.Assign copy = new Expr.Assign(assign.name, rewrite(assign.value));
+            copy.slot = assign.slot;
+            rewritten = copy;
+        }
+        return share(expr, rewritten);
+    }
+
+    // Wraps the rewritten copy of an expression in a Shared node if the
+    // expression is repeated.
+    private Expr share(Expr expr, Expr rewritten) {
+        Integer number = numbers.get(expr);
+        if (number == null || uses.get(number) < 2) return rewritten;
+
+        Integer id = sharedIds.get(number);
+        if (id == null) {
+            id = count++;
+            sharedIds.put(number, id);
+            Set<String> names = new LinkedHashSet<>();
+            collectReads(expr, names);
+            for (String name : names) {
+                int[] ids = readers.getOrDefault(name, new int[0]);
+                int[] grown = Arrays.copyOf(ids, ids.length + 1);
+                grown[ids.length] = id;
+                readers.put(name, grown);
+            }
+        }
+        return new Expr.Shared(id, rewritten);
+    }
+
+    private static void collectReads(Expr expr, Set<String> names) {
+        if (expr instanceof Expr.Variable) {
+            names.add(((Expr.Variable) expr).name.lexeme);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary[] spine = ((Expr.Binary) expr).spine();
+            collectReads(spine[0].left, names);
+            for (Expr.Binary binary : spine) {
+                collectReads(binary.right, names);
+            }
+        } else if (expr instanceof Expr.Unary) {
+            collectReads(((Expr.Unary) expr).right, names);
+        } else if (expr instanceof Expr.Grouping) {
+            collectReads(((Expr.Grouping) expr).expression, names);
+        } else if (expr instanceof Expr.Sum) {
+            for (Expr term : ((Expr.Sum) expr).terms) {
+                collectReads(term, names);
+            }
+        } else if (expr instanceof Expr.Shared) {
+            collectReads(((Expr.Shared) expr).expression, names);
+        }
+    }
+}
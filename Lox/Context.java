@@ -0,0 +1,69 @@
+package Lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Everything one run of a script reports to: its error state, the
+// diagnostics it produced and where its output goes. Each run gets its own
+// context, so scripts can be scanned, parsed and interpreted concurrently.
+class Context {
+    final PrintStream out;
+    final PrintStream err;
+    final List<String> diagnostics = new ArrayList<>();
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Context() {
+        this(System.out, System.err);
+    }
+
+    Context(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    // A context that prints nothing, for work whose diagnostics are
+    // collected and reported elsewhere, or not at all.
+    static Context silent() {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        return new Context(discard, discard);
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    // Reports errors another context collected, such as an imported
+    // module's, under the name of where they came from, if any.
+    void errors(String origin, List<String> diagnostics) {
+        for (String diagnostic : diagnostics) {
+            diagnose(origin == null ? diagnostic : origin + ": " + diagnostic);
+            hadError = true;
+        }
+    }
+
+    void runtimeError(RuntimeError error) {
+        diagnose("[Runtime Error] " + error.getMessage());
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        diagnose("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    private void diagnose(String diagnostic) {
+        diagnostics.add(diagnostic);
+        err.println(diagnostic);
+    }
+}
@@ -0,0 +1,198 @@
+package Lox;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// The names a statement reads and writes. Subjects are names a statement
+// describes without assigning them, such as the target of a flow edge or
+// the river a 'combine' builds; their sources count as reads.
+class Dependencies implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    final Set<String> reads = new LinkedHashSet<>();
+    final Set<String> writes = new LinkedHashSet<>();
+    final Set<String> subjects = new LinkedHashSet<>();
+    // False when the writes happen inside a block or loop, where they may be
+    // local or may not happen at all.
+    boolean definite = true;
+    // True when the statement calls a function, whose body may read and
+    // write names that don't appear here.
+    boolean calls = false;
+
+    static Dependencies of(Stmt stmt) {
+        Dependencies dependencies = new Dependencies();
+        stmt.accept(dependencies);
+        return dependencies;
+    }
+
+    private void read(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    // Statements
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        definite = false;
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    // A function's body runs wherever it is called, so its reads and writes
+    // are charged to the declaration.
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        definite = false;
+        writes.add(stmt.name.lexeme);
+        for (Stmt statement : stmt.body) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        read(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        definite = false;
+        read(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        read(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationStmt(Stmt.RiverDeclaration stmt) {
+        writes.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverFlowStmt(Stmt.RiverFlow stmt) {
+        reads.add(stmt.from.lexeme);
+        subjects.add(stmt.to.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationStmt(Stmt.RiverCombination stmt) {
+        for (Token source : stmt.sources) {
+            reads.add(source.lexeme);
+        }
+        subjects.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitRainfallDeclarationStmt(Stmt.RainfallDeclaration stmt) {
+        writes.add("rainfall");
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationWithFlowStmt(Stmt.RiverDeclarationWithFlow stmt) {
+        writes.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationExprStmt(Stmt.RiverCombinationExpr stmt) {
+        read(stmt.expression);
+        writes.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        read(stmt.initializer);
+        if (stmt.slot < 0) writes.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+        read(stmt.algorithm);
+        if (stmt.slot < 0) writes.add(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitLabelStmt(Stmt.Label stmt) {
+        subjects.add(stmt.name.lexeme);
+        return null;
+    }
+
+    // Expressions
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        read(expr.value);
+        if (expr.slot < 0) writes.add(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        // Iterates along the left spine, which is as long as the formula.
+        Expr.Binary[] spine = expr.spine();
+        read(spine[0].left);
+        for (Expr.Binary binary : spine) {
+            read(binary.right);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        calls = true;
+        read(expr.callee);
+        for (Expr argument : expr.arguments) {
+            read(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        read(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        read(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot < 0) reads.add(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitSharedExpr(Expr.Shared expr) {
+        read(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitSumExpr(Expr.Sum expr) {
+        for (Expr term : expr.terms) {
+            read(term);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+// Monte Carlo runs of one parsed model. Every realisation scales the
+// declared rainfall and root river flows by a random lognormal factor with
+// mean one, and the numbers it would have printed are folded into running
+// statistics instead. Realisations run in fixed-size blocks, each drawing
+// from its own split of the seed's random stream and keeping its own
+// statistics. Blocks are merged in order, so nothing per realisation is
+// kept, and the result depends on the seed alone, not on how many threads
+// the machine has.
+class Ensemble {
+    // What the interpreter asks of the ensemble while a realisation runs.
+    interface Realisation {
+        double input(String name, double value);
+
+        void output(String key, Object value);
+    }
+
+    private static final int BLOCK = 256;
+
+    private final List<Stmt> statements;
+    private final int runs;
+    private final long seed;
+    private final double spread;
+
+    Ensemble(List<Stmt> statements, int runs, long seed, double spread) {
+        this.statements = statements;
+        this.runs = runs;
+        this.seed = seed;
+        this.spread = spread;
+    }
+
+    void run(Context context, NumberFormatter numbers, Function<Context, Interpreter> interpreters) {
+        int blocks = (runs + BLOCK - 1) / BLOCK;
+        SplittableRandom root = new SplittableRandom(seed);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(blocks, Runtime.getRuntime().availableProcessors()));
+        List<Future<Block>> results = new ArrayList<>();
+        for (int b = 0; b < blocks; b++) {
+            Block block = new Block(root.split(), Math.min(BLOCK, runs - b * BLOCK), interpreters);
+            results.add(pool.submit(() -> {
+                block.run();
+                return block;
+            }));
+        }
+        pool.shutdown();
+
+        Map<String, Statistics> merged = new LinkedHashMap<>();
+        int failures = 0;
+        for (int b = 0; b < blocks; b++) {
+            try {
+                Block block = results.get(b).get();
+                failures += block.failures;
+                for (Map.Entry<String, Statistics> entry : block.statistics.entrySet()) {
+                    merged.computeIfAbsent(entry.getKey(), key -> new Statistics()).merge(entry.getValue());
+                }
+                // Merged blocks can be collected while later ones still run.
+                results.set(b, null);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        report(context, numbers, merged, failures);
+    }
+
+    private void report(Context context, NumberFormatter numbers, Map<String, Statistics> merged, int failures) {
+        context.out.println("Ensemble of " + runs + " runs (seed " + seed + ", spread " + spread + ")");
+        if (failures > 0) context.out.println(failures + " runs stopped with a runtime error");
+
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, Statistics> entry : merged.entrySet()) {
+            Statistics statistics = entry.getValue();
+            line.setLength(0);
+            line.append(entry.getKey()).append('\n');
+            field(line, "  mean ", statistics.mean, numbers);
+            field(line, "  sd ", statistics.standardDeviation(), numbers);
+            field(line, "  min ", statistics.min, numbers);
+            field(line, "  max ", statistics.max, numbers);
+            field(line, "  p5 ", statistics.digest.quantile(0.05), numbers);
+            field(line, "  p50 ", statistics.digest.quantile(0.5), numbers);
+            field(line, "  p95 ", statistics.digest.quantile(0.95), numbers);
+            line.append("  (n=").append(statistics.count).append(')');
+            context.out.println(line);
+        }
+    }
+
+    private static void field(StringBuilder line, String name, double value, NumberFormatter numbers) {
+        line.append(name);
+        numbers.append(line, value);
+    }
+
+    private final class Block implements Realisation {
+        private final SplittableRandom random;
+        private final int share;
+        private final Function<Context, Interpreter> interpreters;
+        private final Map<String, Statistics> statistics = new LinkedHashMap<>();
+        // How often each output has been seen in the current realisation,
+        // so a line printed once per loop iteration keeps its iterations apart.
+        private final Map<String, Integer> occurrences = new HashMap<>();
+        private int failures = 0;
+
+        Block(SplittableRandom random, int share, Function<Context, Interpreter> interpreters) {
+            this.random = random;
+            this.share = share;
+            this.interpreters = interpreters;
+        }
+
+        void run() {
+            for (int i = 0; i < share; i++) {
+                occurrences.clear();
+                Context context = Context.silent();
+                Interpreter interpreter = interpreters.apply(context);
+                interpreter.observe(this);
+                interpreter.interpret(statements);
+                if (context.hadRuntimeError) failures++;
+            }
+        }
+
+        @Override
+        public double input(String name, double value) {
+            return value * Math.exp(spread * random.nextGaussian() - spread * spread / 2);
+        }
+
+        @Override
+        public void output(String key, Object value) {
+            if (!(value instanceof Double)) return;
+
+            int occurrence = occurrences.merge(key, 1, Integer::sum);
+            if (occurrence > 1) key = key + " [" + occurrence + "]";
+            statistics.computeIfAbsent(key, k -> new Statistics()).add((double) value);
+        }
+    }
+
+    // Count, mean and variance by Welford's method, extremes, and a digest
+    // for percentiles. Two sets merge exactly (Chan et al.), except for the
+    // digest, which merges approximately.
+    static final class Statistics {
+        long count = 0;
+        double mean = 0;
+        double m2 = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        final TDigest digest = new TDigest(100);
+
+        void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            digest.add(value);
+        }
+
+        void merge(Statistics other) {
+            if (other.count == 0) return;
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            digest.merge(other.digest);
+        }
+
+        double standardDeviation() {
+            return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package Lox;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One lexical scope. Blocks and loop bodies get a fresh environment whose
+// enclosing scope is the one they appear in.
+//
+// A scope can also be forked. Its values so far are frozen into a layer
+// that the scope and its fork share; each then writes only to its own map,
+// copying a frozen value there the first time it is assigned.
+//
+// A global scope that grows past OFF_HEAP_THRESHOLD bindings moves them
+// into an OffHeapValues, so very large generated models don't fill the heap.
+class Environment {
+    // Layers deeper than this are flattened into one when forking again.
+    private static final int MAX_FROZEN_DEPTH = 8;
+    static final int OFF_HEAP_THRESHOLD = 1 << 16;
+
+    private static final class Frozen {
+        final Map<String, Object> values;
+        final Frozen below;
+        final int depth;
+
+        Frozen(Map<String, Object> values, Frozen below) {
+            this.values = values;
+            this.below = below;
+            this.depth = below == null ? 1 : below.depth + 1;
+        }
+    }
+
+    final Environment enclosing;
+    private Map<String, Object> values = new HashMap<>();
+    private Frozen frozen = null;
+
+    Environment() {
+        enclosing = null;
+    }
+
+    Environment(Environment enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    // A global scope that several threads can define and assign in at once.
+    static Environment concurrent() {
+        Environment environment = new Environment();
+        environment.values = new ConcurrentValues();
+        return environment;
+    }
+
+    Object get(Token name) {
+        Object value = values.get(name.lexeme);
+        if (value != null || values.containsKey(name.lexeme)) return value;
+        for (Frozen layer = frozen; layer != null; layer = layer.below) {
+            value = layer.values.get(name.lexeme);
+            if (value != null || layer.values.containsKey(name.lexeme)) return value;
+        }
+        if (enclosing != null) return enclosing.get(name);
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    // The scope that holds a name, for callers that remember where it lives.
+    Environment resolve(Token name) {
+        for (Environment scope = this; scope != null; scope = scope.enclosing) {
+            if (scope.contains(name.lexeme)) return scope;
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    Object getHere(String name) {
+        Object value = values.get(name);
+        if (value != null || frozen == null || values.containsKey(name)) return value;
+        for (Frozen layer = frozen; layer != null; layer = layer.below) {
+            value = layer.values.get(name);
+            if (value != null || layer.values.containsKey(name)) return value;
+        }
+        return null;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    void define(String name, Object value) {
+        put(name, value);
+    }
+
+    void assign(Token name, Object value) {
+        if (contains(name.lexeme)) {
+            put(name.lexeme, value);
+            return;
+        }
+        if (enclosing != null) {
+            enclosing.assign(name, value);
+            return;
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    // Assigning a frozen value after a fork copies it here too, so either
+    // can take a global scope past the threshold.
+    private void put(String name, Object value) {
+        values.put(name, value);
+        if (enclosing == null && values.size() >= OFF_HEAP_THRESHOLD && values instanceof HashMap) {
+            values = new OffHeapValues(values);
+        }
+    }
+
+    private boolean contains(String name) {
+        if (values.containsKey(name)) return true;
+        for (Frozen layer = frozen; layer != null; layer = layer.below) {
+            if (layer.values.containsKey(name)) return true;
+        }
+        return false;
+    }
+
+    Set<String> names() {
+        if (frozen == null) return values.keySet();
+
+        Set<String> names = new HashSet<>(values.keySet());
+        for (Frozen layer = frozen; layer != null; layer = layer.below) {
+            names.addAll(layer.values.keySet());
+        }
+        return names;
+    }
+
+    // Freezes this scope's values and returns a new scope over the same
+    // frozen layers. Only the outermost scope can be forked.
+    Environment fork() {
+        if (enclosing != null) throw new IllegalStateException("Only global scopes can be forked.");
+
+        if (!values.isEmpty()) {
+            frozen = new Frozen(values, frozen);
+            values = new HashMap<>();
+        }
+        if (frozen != null && frozen.depth > MAX_FROZEN_DEPTH) {
+            Map<String, Object> flat = flatten(frozen);
+            frozen = new Frozen(flat.size() < OFF_HEAP_THRESHOLD ? flat : new OffHeapValues(flat), null);
+        }
+
+        Environment fork = new Environment();
+        fork.frozen = frozen;
+        return fork;
+    }
+
+    private static Map<String, Object> flatten(Frozen layer) {
+        Map<String, Object> flat = layer.below == null ? new HashMap<>() : flatten(layer.below);
+        flat.putAll(layer.values);
+        return flat;
+    }
+
+    // ConcurrentHashMap can't hold null, so nil is stored as a marker.
+    private static final class ConcurrentValues extends AbstractMap<String, Object> {
+        private static final Object NIL = new Object();
+        private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+        @Override
+        public Object get(Object key) {
+            return unwrap(values.get(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return unwrap(values.put(key, value == null ? NIL : value));
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Set<Entry<String, Object>> entries = new HashSet<>();
+            for (Entry<String, Object> entry : values.entrySet()) {
+                entries.add(new SimpleImmutableEntry<>(entry.getKey(), unwrap(entry.getValue())));
+            }
+            return entries;
+        }
+
+        private static Object unwrap(Object value) {
+            return value == NIL ? null : value;
+        }
+    }
+}
@@ -2,19 +2,43 @@ package Lox;
 
 import java.util.List;
 
+import Lox.Expr.Assign;
 import Lox.Expr.Binary;
+import Lox.Expr.Call;
 import Lox.Expr.Grouping;
 import Lox.Expr.Literal;
+import Lox.Expr.Shared;
+import Lox.Expr.Sum;
 import Lox.Expr.Unary;
 import Lox.Expr.Variable;
 
 abstract class Expr {
     interface Visitor<R> {
+        R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
+        R visitCallExpr(Call expr);
         R visitGroupingExpr(Grouping expr);
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
+        R visitSharedExpr(Shared expr);
+        R visitSumExpr(Sum expr);
+    }
+
+    static class Assign extends Expr {
+        Assign(Token name, Expr value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitAssignExpr(this);
+        }
+
+        final Token name;
+        final Expr value;
+        int slot = -1; // frame slot of a function local, or -1
     }
 
     static class Binary extends Expr {
@@ -32,6 +56,56 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    boolean numeric; // both operands proven numbers by TypeChecker
+
+    // Compilers turn chains longer than this into one loop rather than a
+    // node per operator, whose evaluation would recurse as deep as the
+    // formula is long.
+    static final int MAX_NESTED_CHAIN = 64;
+
+    // A long formula is a chain like a + b + c + ... nesting to the left.
+    // Its spine is the binaries down the left side, innermost first: the
+    // order their operators apply in, starting from spine()[0].left.
+    // Walking it takes one frame however long the formula is. Built the
+    // first time it is asked for and kept, as the tree doesn't change.
+    Binary[] spine() {
+        Binary[] spine = this.spine;
+        if (spine != null) return spine;
+        int length = 0;
+        for (Expr e = this; e instanceof Binary; e = ((Binary) e).left) {
+            length++;
+        }
+        spine = new Binary[length];
+        Expr e = this;
+        for (int i = length - 1; i >= 0; i--) {
+            spine[i] = (Binary) e;
+            e = spine[i].left;
+        }
+        this.spine = spine;
+        return spine;
+    }
+
+    private volatile Binary[] spine = null;
+    }
+
+    static class Call extends Expr {
+        Call(Expr callee, Token paren, List<Expr> arguments) {
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+
+        final Expr callee;
+        final Token paren;
+        final List<Expr> arguments;
+        // Monomorphic inline cache: the last function called here, already
+        // checked for arity.
+        Object cachedCallee;
     }
 
     static class Grouping extends Expr {
@@ -73,10 +147,12 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        boolean numeric; // operand proven a number by TypeChecker
     }
 
     static class Variable extends Expr {
         final Token name;
+        int slot = -1; // frame slot of a function local, or -1
 
         Variable(Token name) {
             this.name = name;
@@ -88,5 +164,39 @@ abstract class Expr {
         }
     }
 
+    // A subexpression that CommonSubexpressions found at several sites; all
+    // sites with the same id reuse one cached value.
+    static class Shared extends Expr {
+        final int id;
+        final Expr expression;
+
+        Shared(int id, Expr expression) {
+            this.id = id;
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSharedExpr(this);
+        }
+    }
+
+    // The sources of a wide river combination, a + b + c + ..., added in
+    // one step by Summation. operators.get(i) joins terms i and i + 1.
+    static class Sum extends Expr {
+        final List<Expr> terms;
+        final List<Token> operators;
+
+        Sum(List<Expr> terms, List<Token> operators) {
+            this.terms = terms;
+            this.operators = operators;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSumExpr(this);
+        }
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,209 @@
+package Lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Keeps a model running on live gauge readings. Each line of the feed is a
+// timestamp in milliseconds followed by one or more name=value readings of
+// the model's declared inputs: rainfall and rivers declared with a flow.
+//
+// A reader thread parses lines into a bounded queue and blocks when it is
+// full, so a model that falls behind slows the feed down rather than
+// buffering it. Readings are grouped into batches by the time window their
+// timestamps fall in. A batch closes when a reading from a later window
+// arrives, or when the feed has been quiet for a window's length. Each
+// batch updates the latest value of its inputs, and the model then runs
+// afresh with those values in place of the declared ones. Nothing else is
+// kept between batches, so memory stays flat however long the feed runs.
+//
+// The first run prints everything. After that only the lines a reading can
+// change are printed again: declarations whose value depends on an input,
+// and output statements. Everything else still runs, but without an echo.
+class Feed {
+    private static final int CAPACITY = 1024;
+
+    private static final class Reading {
+        final long time;
+        final String name;
+        final double value;
+
+        Reading(long time, String name, double value) {
+            this.time = time;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static final Reading END = new Reading(0, null, 0);
+
+    private final List<Stmt> statements;
+    private final long window;
+    private final Function<Context, Interpreter> interpreters;
+    private final Set<String> inputs = new HashSet<>();
+    // Whether each top-level statement is printed after the first run.
+    private final boolean[] echoed;
+    private final BlockingQueue<Reading> queue = new ArrayBlockingQueue<>(CAPACITY);
+    // Latest value of each input that has had a reading.
+    private final Map<String, Double> latest = new HashMap<>();
+
+    Feed(List<Stmt> statements, long window, Function<Context, Interpreter> interpreters) {
+        this.statements = statements;
+        this.window = window;
+        this.interpreters = interpreters;
+        collectInputs(statements);
+        this.echoed = echoed(statements);
+    }
+
+    // Statements that write an input, or write something from what such a
+    // statement wrote, and those that print a value without writing one.
+    // Calls may read anything, so they count as depending on the inputs.
+    private boolean[] echoed(List<Stmt> statements) {
+        boolean[] echoed = new boolean[statements.size()];
+        Set<String> changed = new HashSet<>(inputs);
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt stmt = statements.get(i);
+            Dependencies dependencies = Dependencies.of(stmt);
+            boolean affected = dependencies.calls
+                || !Collections.disjoint(dependencies.writes, inputs)
+                || !Collections.disjoint(dependencies.reads, changed);
+            if (affected) changed.addAll(dependencies.writes);
+            boolean output = stmt instanceof Stmt.Expression && dependencies.writes.isEmpty();
+            echoed[i] = output || (affected && !dependencies.writes.isEmpty());
+        }
+        return echoed;
+    }
+
+    private void collectInputs(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.RainfallDeclaration) {
+                inputs.add("rainfall");
+            } else if (stmt instanceof Stmt.RiverDeclarationWithFlow) {
+                inputs.add(((Stmt.RiverDeclarationWithFlow) stmt).name.lexeme);
+            } else if (stmt instanceof Stmt.Block) {
+                collectInputs(((Stmt.Block) stmt).statements);
+            } else if (stmt instanceof Stmt.While) {
+                collectInputs(List.of(((Stmt.While) stmt).body));
+            } else if (stmt instanceof Stmt.Function) {
+                collectInputs(((Stmt.Function) stmt).body);
+            }
+        }
+    }
+
+    void run(BufferedReader feed) throws IOException {
+        Thread reader = new Thread(() -> read(feed), "feed");
+        reader.setDaemon(true);
+        reader.start();
+
+        System.out.println("== declared inputs");
+        evaluate(false);
+
+        Map<String, Double> batch = new HashMap<>();
+        long open = 0;
+        int count = 0;
+        try {
+            for (;;) {
+                Reading reading = count == 0 ? queue.take() : queue.poll(window, TimeUnit.MILLISECONDS);
+                if (reading != null && reading != END) {
+                    long index = Math.floorDiv(reading.time, window);
+                    // Late readings join the open batch.
+                    if (count > 0 && index > open) {
+                        apply(batch, open, count);
+                        count = 0;
+                    }
+                    if (count == 0) open = index;
+                    batch.put(reading.name, reading.value);
+                    count++;
+                    continue;
+                }
+                if (count > 0) apply(batch, open, count);
+                count = 0;
+                if (reading == END) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void apply(Map<String, Double> batch, long index, int count) {
+        latest.putAll(batch);
+        batch.clear();
+        System.out.println("== window " + index * window + " ms, " + count + (count == 1 ? " reading" : " readings"));
+        evaluate(true);
+    }
+
+    private void evaluate(boolean quietly) {
+        Gate gate = new Gate();
+        Context context = new Context(new PrintStream(gate, true), System.err);
+        Interpreter interpreter = interpreters.apply(context);
+        interpreter.useReadings(latest);
+        for (int i = 0; i < statements.size() && !context.hadRuntimeError; i++) {
+            gate.open = !quietly || echoed[i];
+            interpreter.interpret(statements.subList(i, i + 1));
+        }
+        System.out.flush();
+    }
+
+    // Passes output through to standard output while open.
+    private static final class Gate extends OutputStream {
+        boolean open = true;
+
+        @Override
+        public void write(int b) {
+            if (open) System.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (open) System.out.write(b, off, len);
+        }
+    }
+
+    private void read(BufferedReader feed) {
+        try {
+            int number = 0;
+            for (String line; (line = feed.readLine()) != null; ) {
+                number++;
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 1 && fields[0].isEmpty()) continue;
+                try {
+                    if (fields.length < 2) throw new NumberFormatException();
+                    long time = Long.parseLong(fields[0]);
+                    for (int i = 1; i < fields.length; i++) {
+                        int equals = fields[i].indexOf('=');
+                        if (equals < 0) throw new NumberFormatException();
+                        String name = fields[i].substring(0, equals);
+                        double value = Double.parseDouble(fields[i].substring(equals + 1));
+                        if (inputs.contains(name)) {
+                            queue.put(new Reading(time, name, value));
+                        } else {
+                            System.err.println("[feed " + number + "] No input named '" + name + "'.");
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[feed " + number + "] Expect 'timestamp name=value ...'.");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
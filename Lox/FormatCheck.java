@@ -0,0 +1,88 @@
+package Lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.SplittableRandom;
+
+// Compares NumberFormatter with Double.toString on values a script is likely
+// to print, then times a million output lines through the old string
+// concatenation and through the interpreter's formatter.
+class FormatCheck {
+    private static final int LINES = 1_000_000;
+    // Values on the fallback path that Double.toString printed with more
+    // digits than needed before JDK 19. The fallback must keep printing what
+    // this JDK prints rather than anything shorter.
+    private static final double[] LONG_BEFORE_19 = { 1e23, 2e23, 3.1607015940265421E17 };
+
+    public static void main(String[] args) {
+        int failures = compare();
+        System.out.println(failures == 0 ? "OK   formatter matches Double.toString" : "FAIL " + failures + " values");
+
+        double[] values = new double[LINES];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < LINES; i++) {
+            values[i] = random.nextInt(100_000) / 10.0;
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("concatenation %5d ms   formatter %5d ms%n", concatenation(values), formatter(values));
+        }
+
+        if (failures > 0) System.exit(1);
+    }
+
+    private static int compare() {
+        NumberFormatter formatter = new NumberFormatter(NumberFormatter.SHORTEST);
+        StringBuilder out = new StringBuilder();
+        SplittableRandom random = new SplittableRandom(7);
+        int failures = 0;
+        for (double value : LONG_BEFORE_19) {
+            failures += compare(formatter, out, value, failures);
+        }
+        for (int i = 0; i < 5_000_000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0: value = random.nextInt(10_000_000) / 10.0; break;
+                case 1: value = random.nextInt(10_000_000) / 1000.0; break;
+                case 2: value = random.nextDouble() * 1e7; break;
+                default: value = Double.longBitsToDouble(random.nextLong()); break;
+            }
+            if (random.nextBoolean()) value = -value;
+            failures += compare(formatter, out, value, failures);
+        }
+        return failures;
+    }
+
+    // 1 if the formatter differs from Double.toString on value, printing the
+    // first few differences.
+    private static int compare(NumberFormatter formatter, StringBuilder out, double value, int failures) {
+        out.setLength(0);
+        formatter.append(out, value);
+        String expected = Double.toString(value);
+        if (expected.contentEquals(out)) return 0;
+        if (failures < 10) System.out.println("  " + expected + " formatted as " + out);
+        return 1;
+    }
+
+    private static long concatenation(double[] values) {
+        PrintStream out = sink();
+        long start = System.nanoTime();
+        for (double value : values) {
+            Object boxed = value;
+            out.println("total: " + boxed + " L/s");
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static long formatter(double[] values) {
+        Interpreter interpreter = new Interpreter(new Context(sink(), sink()));
+        long start = System.nanoTime();
+        for (double value : values) {
+            interpreter.printFlow("total", value);
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static PrintStream sink() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+}
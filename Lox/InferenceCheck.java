@@ -0,0 +1,107 @@
+package Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs programs whose types the checker can't prove, once type checked and
+// once with every runtime check in place, and reports any difference in
+// their output. A checked run that trusts a wrong proof fails with a Java
+// exception instead of the runtime error the unchecked run reports.
+//
+// Restored programs start from a snapshot saved after running another
+// script, whose globals the checker never sees being assigned.
+class InferenceCheck {
+    private static final String[][] PROGRAMS = {
+        { "aliased function",
+            "fun f(a) { return a - 1; } var x = f(5); var g = f; var y = g(\"s\");" },
+        { "function passed as an argument",
+            "fun f(a) { return a * 2; } fun apply(h, v) { return h(v); } f(5); apply(f, \"s\");" },
+        { "function returned from a call",
+            "fun f(a) { return -a; } fun get() { return f; } f(1); get()(\"s\");" },
+        { "local function",
+            "fun outer() { fun inner(a) { return a - 1; } inner(3); var h = inner; return h(\"s\"); } outer();" },
+        { "name reassigned after a call",
+            "fun f(a) { return a - 1; } f(5); fun g(a) { return a; } f = g; f(\"s\");" },
+    };
+
+    // The script whose state is saved, then the program restored from it.
+    private static final String[][] RESTORED = {
+        { "restored string",
+            "var x = \"abc\";",
+            "var y = x - 1; y; var x = 2;" },
+        { "restored function writing a global",
+            "var g = 1; fun set() { g = \"s\"; }",
+            "set(); var z = g - 1; z;" },
+        { "restored function calling the program's",
+            "fun apply(v) { return h(v); }",
+            "fun h(a) { return a - 1; } h(1); apply(\"s\");" },
+    };
+
+    public static void main(String[] args) throws IOException {
+        int failures = 0;
+        for (String[] program : PROGRAMS) {
+            failures += compare(program[0], run(null, program[1], false), run(null, program[1], true));
+        }
+        for (String[] program : RESTORED) {
+            Snapshot snapshot = save(program[1]);
+            failures += compare(program[0], run(snapshot, program[2], false), run(snapshot, program[2], true));
+        }
+
+        if (failures > 0) System.exit(1);
+    }
+
+    private static int compare(String name, String expected, String actual) {
+        if (expected.equals(actual)) {
+            System.out.println("OK   " + name);
+            return 0;
+        }
+        System.out.println("FAIL " + name);
+        System.out.println("--- unchecked\n" + expected + "--- checked\n" + actual);
+        return 1;
+    }
+
+    // Runs a script and reads back the snapshot written after it.
+    private static Snapshot save(String source) throws IOException {
+        Context context = Context.silent();
+        List<Stmt> statements = new Parser(new Scanner(source, context).scanTokens(), context).parseStatements();
+        Interpreter interpreter = new Interpreter(context);
+        interpreter.interpret(statements);
+        Map<Stmt, Integer> origins = new IdentityHashMap<>();
+        List<String> sources = Snapshot.declaresFunctions(statements, 0, origins) ? List.of(source) : List.of();
+        Path path = Files.createTempFile("inference", ".snap");
+        try {
+            Snapshot.of(interpreter, sources, origins).write(path);
+            return Snapshot.read(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static String run(Snapshot snapshot, String source, boolean checked) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(buffer, true);
+        Context context = new Context(capture, capture);
+        List<Stmt> statements = new Parser(new Scanner(source, context).scanTokens(), context).parseStatements();
+        if (checked) {
+            TypeChecker checker = new TypeChecker(context);
+            if (snapshot != null) snapshot.assume(checker);
+            checker.check(statements);
+        }
+        if (!context.hadError) {
+            Interpreter interpreter = new Interpreter(context);
+            if (snapshot != null) snapshot.restore(interpreter, new IdentityHashMap<>());
+            try {
+                interpreter.interpret(statements);
+            } catch (RuntimeException e) {
+                capture.println(e);
+            }
+        }
+        return buffer.toString();
+    }
+}
@@ -4,19 +4,137 @@ import static Lox.TokenType.BANG;
 import static Lox.TokenType.BANG_EQUAL;
 import static Lox.TokenType.EQUAL_EQUAL;
 import static Lox.TokenType.GREATER;
+import static Lox.TokenType.GREATER_EQUAL;
 import static Lox.TokenType.LESS;
+import static Lox.TokenType.LESS_EQUAL;
 import static Lox.TokenType.MINUS;
 import static Lox.TokenType.PLUS;
 import static Lox.TokenType.SLASH;
 import static Lox.TokenType.STAR;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private final Map<String, Object> environment = new HashMap<>();
-    private final Map<String, String> labels = new HashMap<>();
+    private final Context context;
+    final Environment globals;
+    private Environment environment;
+    // Slots of the function call being executed; null at top level.
+    Object[] frame = null;
+    final Map<String, String> labels;
+    // Global names that have held a function, which fork() may need to rebind.
+    private final Set<String> globalFunctions;
+
+    // Cached values of Expr.Shared nodes, invalidated when a variable they read is written.
+    static final Object UNSET = new Object();
+    Object[] sharedValues = new Object[0];
+    private Map<String, int[]> sharedReaders = null;
+
+    // Self-specializing node trees, built the first time each expression runs.
+    private Map<Expr, Specializer.Node> specialized = null;
+    private Specializer specializer;
+
+    private final StringBuilder line = new StringBuilder();
+    private NumberFormatter numbers = new NumberFormatter(NumberFormatter.SHORTEST);
+    private Ensemble.Realisation realisation = null;
+    // Latest gauge readings, which replace declared inputs in stream mode.
+    private Map<String, Double> readings = null;
+    // Cached dam and combination results, shared by every interpreter using it.
+    private Memo memo = null;
+    // Whether top-level var and dam declarations are evaluated on first read.
+    private boolean lazy = false;
+
+    Interpreter(Context context) {
+        this(context, new Environment(), new HashMap<>(), new HashSet<>());
+    }
+
+    // An interpreter whose globals, labels and function names can be written
+    // from several threads, for running statements in parallel.
+    static Interpreter concurrent(Context context) {
+        return new Interpreter(context, Environment.concurrent(), new ConcurrentHashMap<>(), ConcurrentHashMap.newKeySet());
+    }
+
+    private Interpreter(Context context, Environment globals, Map<String, String> labels, Set<String> globalFunctions) {
+        this.context = context;
+        this.globals = globals;
+        this.environment = globals;
+        this.labels = labels;
+        this.globalFunctions = globalFunctions;
+    }
+
+    // A new interpreter that starts from this one's state. Both keep the
+    // globals so far as a shared frozen layer and write only their own
+    // changes, so forking costs the same however large the state is.
+    Interpreter fork(Context context) {
+        if (environment != globals || frame != null) {
+            throw new IllegalStateException("Interpreters fork only between top-level statements.");
+        }
+
+        Interpreter fork = new Interpreter(context, globals.fork(), new HashMap<>(labels), new HashSet<>(globalFunctions));
+        // Functions closing over the old globals get copies closing over the
+        // fork's; names bound to the same function stay bound to one copy.
+        Map<LoxFunction, LoxFunction> rebound = new IdentityHashMap<>();
+        for (String name : globalFunctions) {
+            Object value = globals.getHere(name);
+            if (value instanceof LoxFunction && ((LoxFunction) value).closure == globals) {
+                LoxFunction function = (LoxFunction) value;
+                fork.globals.define(name, rebound.computeIfAbsent(function,
+                    f -> new LoxFunction(f.declaration, fork.globals)));
+            }
+        }
+        fork.numbers = numbers;
+        fork.memo = memo;
+        fork.lazy = lazy;
+        if (specialized != null) fork.useSpecializedNodes();
+        return fork;
+    }
+
+    // Another interpreter over this one's globals and labels, with its own
+    // scopes and output, for running statements on another thread.
+    Interpreter worker(Context context) {
+        Interpreter worker = new Interpreter(context, globals, labels, globalFunctions);
+        worker.numbers = numbers;
+        worker.memo = memo;
+        if (specialized != null) worker.useSpecializedNodes();
+        return worker;
+    }
+
+    void observe(Ensemble.Realisation realisation) {
+        this.realisation = realisation;
+    }
+
+    void useReadings(Map<String, Double> readings) {
+        this.readings = readings;
+    }
+
+    void useMemo(Memo memo) {
+        this.memo = memo;
+    }
+
+    void useLazyDeclarations() {
+        lazy = true;
+    }
+
+    void useFixedPrecision(int digits) {
+        numbers = new NumberFormatter(digits);
+    }
+
+    void useSpecializedNodes() {
+        specialized = new IdentityHashMap<>();
+        specializer = new Specializer(this);
+    }
+
+    void useSharedSubexpressions(CommonSubexpressions cse) {
+        sharedValues = new Object[cse.count];
+        Arrays.fill(sharedValues, UNSET);
+        sharedReaders = cse.readers;
+    }
 
     void interpret(List<Stmt> statements) {
         try {
@@ -24,15 +142,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 execute(stmt);
             }
         } catch (RuntimeError error) {
-            System.err.println("[Runtime Error] " + error.getMessage());
+            context.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
+    // Runs a program produced by ClosureCompiler against this interpreter's state.
+    void interpret(Runnable program) {
+        try {
+            program.run();
+        } catch (RuntimeError error) {
+            context.runtimeError(error);
+        }
+    }
+
+    // Runs statements that don't depend on each other at the same time.
+    void interpretInParallel(List<Stmt> statements) {
+        new ParallelExecutor(statements).run(this, context);
+    }
+
+    void execute(Stmt stmt) {
         stmt.accept(this);
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
+        if (specialized != null) return specialized.computeIfAbsent(expr, specializer::root).execute();
         return expr.accept(this);
     }
 
@@ -51,97 +184,357 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
         switch (expr.operator.type) {
-            case MINUS: return -(double) right;
+            case MINUS:
+                if (!expr.numeric) checkNumberOperand(expr.operator, right);
+                return -(double) right;
             case BANG: return !isTruthy(right);
         }
         return null;
     }
 
+    // A chain like a + b + c + ... is evaluated along its spine, so it takes
+    // one frame however long the formula is.
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
+        if (!(expr.left instanceof Expr.Binary)) return binary(expr, evaluate(expr.left));
+
+        Expr.Binary[] spine = expr.spine();
+        Object value = evaluate(spine[0].left);
+        for (Expr.Binary binary : spine) {
+            value = binary(binary, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitSumExpr(Expr.Sum expr) {
+        return Summation.add(this, expr.operators, expr.terms.size(), i -> evaluate(expr.terms.get(i)));
+    }
+
+    private Object binary(Expr.Binary expr, Object left) {
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        if (expr.numeric) return numeric(expr.operator, (double) left, (double) right);
+        return binary(expr.operator, left, right);
+    }
+
+    // The checked path for operands whose types weren't proven.
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left + (double) right;
                 }
+                if (left == null || right == null) {
+                    throw new RuntimeError(operator, "Operands must not be nil.");
+                }
                 return left.toString() + right.toString();
-            case MINUS: return (double) left - (double) right;
-            case STAR: return (double) left * (double) right;
-            case SLASH: return (double) left / (double) right;
             case EQUAL_EQUAL: return isEqual(left, right);
             case BANG_EQUAL: return !isEqual(left, right);
-            case GREATER: return (double) left > (double) right;
-            case LESS: return (double) left < (double) right;
+        }
+        checkNumberOperands(operator, left, right);
+        return numeric(operator, (double) left, (double) right);
+    }
+
+    // Operands proven numeric by TypeChecker come straight here.
+    private Object numeric(Token operator, double left, double right) {
+        switch (operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case SLASH: return left / right;
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
         }
         return null;
     }
 
+    void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    private void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluate(expr.value);
+        if (expr.slot >= 0) {
+            frame[expr.slot] = value;
+        } else {
+            assign(expr.name, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        LoxFunction function = function(expr, evaluate(expr.callee));
+        Object[] arguments = new Object[function.declaration.frameSize];
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return call(function, arguments);
+    }
+
+    // Checks the callee of a call site. A site that keeps calling the same
+    // function hits its inline cache and skips the type and arity checks.
+    LoxFunction function(Expr.Call expr, Object callee) {
+        if (callee == expr.cachedCallee) return (LoxFunction) callee;
+
+        if (!(callee instanceof LoxFunction)) {
+            throw new RuntimeError(expr.paren, "Can only call functions.");
+        }
+        LoxFunction function = (LoxFunction) callee;
+        if (expr.arguments.size() != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
+                " arguments but got " + expr.arguments.size() + ".");
+        }
+        expr.cachedCallee = function;
+        return function;
+    }
+
+    // Runs a function body against a frame whose leading slots hold the
+    // arguments. Names that are not locals resolve in the function's closure.
+    Object call(LoxFunction function, Object[] arguments) {
+        Object[] previousFrame = frame;
+        Environment previousEnvironment = environment;
+        frame = arguments;
+        environment = function.closure;
+        try {
+            if (function.formula != null) return evaluate(function.formula);
+
+            for (Stmt statement : function.declaration.body) {
+                execute(statement);
+            }
+            return null;
+        } catch (Return returnValue) {
+            return returnValue.value;
+        } finally {
+            frame = previousFrame;
+            environment = previousEnvironment;
+        }
+    }
+
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        if (environment.containsKey(expr.name.lexeme)) {
-            return environment.get(expr.name.lexeme);
+        return read(expr);
+    }
+
+    Object read(Expr.Variable expr) {
+        if (expr.slot >= 0) return frame[expr.slot];
+        return force(lookup(expr.name));
+    }
+
+    // A variable's value, evaluating a lazy declaration the first time it is read.
+    Object force(Object value) {
+        if (!(value instanceof Thunk)) return value;
+        Thunk thunk = (Thunk) value;
+        if (thunk.forced()) return thunk.value();
+
+        Object[] previousFrame = frame;
+        Environment previousEnvironment = environment;
+        frame = null;
+        environment = thunk.scope();
+        try {
+            thunk.force(thunk.memoize && memo != null
+                ? memo.evaluate(this, thunk.initializer)
+                : evaluate(thunk.initializer));
+        } finally {
+            frame = previousFrame;
+            environment = previousEnvironment;
+        }
+        return thunk.value();
+    }
+
+    // A thunk for a top-level initializer, or null if it runs now.
+    private Thunk defer(Expr initializer, Expr.Variable[] reads, boolean memoize) {
+        if (!lazy || frame != null || reads == Thunk.EAGER) return null;
+
+        // Looking the reads up now keeps undefined variables an error here.
+        Object[] values = new Object[reads.length];
+        int depth = 1;
+        for (int i = 0; i < reads.length; i++) {
+            values[i] = lookup(reads[i].name);
+            if (values[i] instanceof Thunk && !((Thunk) values[i]).forced()) {
+                depth = Math.max(depth, ((Thunk) values[i]).depth + 1);
+            }
+        }
+        if (depth > Thunk.MAX_DEPTH) return null;
+        return new Thunk(initializer, memoize, depth, reads, values);
+    }
+
+    @Override
+    public Object visitSharedExpr(Expr.Shared expr) {
+        Object value = sharedValues[expr.id];
+        if (value == UNSET) {
+            value = evaluate(expr.expression);
+            sharedValues[expr.id] = value;
+        }
+        return value;
+    }
+
+    // A declared input, replaced by its latest reading in stream mode and
+    // perturbed when running as part of an ensemble.
+    private Object input(String name, double value) {
+        if (readings != null) value = readings.getOrDefault(name, value);
+        if (realisation == null) return value;
+        return realisation.input(name, value);
+    }
+
+    Environment scope() {
+        return environment;
+    }
+
+    Object lookup(Token name) {
+        return environment.get(name);
+    }
+
+    void define(String name, Object value) {
+        environment.define(name, value);
+        if (value instanceof LoxFunction && environment == globals) globalFunctions.add(name);
+        invalidate(name);
+    }
+
+    void assign(Token name, Object value) {
+        environment.assign(name, value);
+        if (value instanceof LoxFunction) globalFunctions.add(name.lexeme);
+        invalidate(name.lexeme);
+    }
+
+    // Rainfall is a catchment-wide input, so it always lives in the global scope.
+    void setRainfall(Object value) {
+        globals.define("rainfall", value);
+        invalidate("rainfall");
+    }
+
+    Environment beginScope() {
+        Environment previous = environment;
+        environment = new Environment(previous);
+        return previous;
+    }
+
+    void endScope(Environment previous) {
+        // Names declared in the scope now resolve to outer bindings again.
+        if (sharedReaders != null) {
+            for (String name : environment.names()) invalidate(name);
+        }
+        environment = previous;
+    }
+
+    private void invalidate(String name) {
+        if (sharedReaders != null) {
+            int[] ids = sharedReaders.get(name);
+            if (ids != null) {
+                for (int id : ids) sharedValues[id] = UNSET;
+            }
         }
-        throw new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'.");
     }
 
     // River Statement execution
     @Override
     public Void visitRainfallDeclarationStmt(Stmt.RainfallDeclaration stmt) {
-        environment.put("rainfall", stmt.value.literal);
-        System.out.println("Rainfall set to " + stmt.value.literal + " mm");
+        Object value = input("rainfall", stmt.value.number);
+        setRainfall(value);
+        printRainfall(value);
         return null;
     }
 
     @Override
     public Void visitRiverDeclarationStmt(Stmt.RiverDeclaration stmt) {
-        environment.put(stmt.name.lexeme, stmt.type.lexeme);
-        System.out.println("River " + stmt.name.lexeme + " declared as " + stmt.type.lexeme);
+        define(stmt.name.lexeme, stmt.type.lexeme);
+        printRiver(stmt.name.lexeme, stmt.type.lexeme);
         return null;
     }
 
     @Override
     public Void visitRiverDeclarationWithFlowStmt(Stmt.RiverDeclarationWithFlow stmt) {
-        environment.put(stmt.name.lexeme, stmt.flowRate.literal);
-        System.out.println("River " + stmt.name.lexeme + " declared with flow " + stmt.flowRate.literal + " L/s");
+        Object flowRate = input(stmt.name.lexeme, stmt.flowRate.number);
+        define(stmt.name.lexeme, flowRate);
+        printRiverWithFlow(stmt.name.lexeme, flowRate);
         return null;
     }
 
     @Override
     public Void visitRiverFlowStmt(Stmt.RiverFlow stmt) {
-        System.out.println("River " + stmt.from.lexeme + " flows to " + stmt.to.lexeme);
+        printRiverFlow(stmt.from.lexeme, stmt.to.lexeme);
         return null;
     }
 
     @Override
     public Void visitRiverCombinationStmt(Stmt.RiverCombination stmt) {
-        List<String> sources = stmt.sources.stream().map(t -> t.lexeme).toList();
-        System.out.println("River " + stmt.name.lexeme + " combines: " + String.join(", ", sources));
+        printCombination(stmt.name.lexeme, joinSources(stmt.sources));
         return null;
     }
 
     @Override
     public Void visitRiverCombinationExprStmt(Stmt.RiverCombinationExpr stmt) {
-        Object result = evaluate(stmt.expression);
-        environment.put(stmt.name.lexeme, result);
-        System.out.println("River " + stmt.name.lexeme + " set to combination result: " + result);
+        Object result = memo == null ? evaluate(stmt.expression) : memo.evaluate(this, stmt.expression);
+        define(stmt.name.lexeme, result);
+        printCombinationResult(stmt.name.lexeme, result);
         return null;
     }
 
     // Statement execution
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (frame != null) {
+            // Inside a function every local already has a frame slot.
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+
+        Environment previous = beginScope();
+        try {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+        } finally {
+            endScope(previous);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.name.lexeme, new LoxFunction(stmt, environment));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Object value = null;
+        if (stmt.value != null) value = evaluate(stmt.value);
+        throw new Return(value);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        while (isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.body);
+        }
+        return null;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         Object value = evaluate(stmt.expression);
 
-        if (stmt.expression instanceof Expr.Variable) {
+        if (stmt.expression instanceof Expr.Assign) {
+            // Assignments are executed for their effect only.
+        } else if (stmt.expression instanceof Expr.Variable) {
             String name = ((Expr.Variable) stmt.expression).name.lexeme;
 
             // Auto-label logic
-            String label = autoLabel(name);
-            System.out.println(label + ": " + value + " L/s");
+            printFlow(autoLabel(name), value);
         } else {
-            System.out.println("= " + value);
+            printResult(value);
         }
 
         return null;
@@ -151,38 +544,111 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            if (lazy && stmt.reads == null) stmt.reads = Thunk.reads(stmt.initializer);
+            value = defer(stmt.initializer, stmt.reads, false);
+            if (value == null) value = evaluate(stmt.initializer);
+        }
+        if (stmt.slot >= 0) {
+            frame[stmt.slot] = value;
+        } else {
+            define(stmt.name.lexeme, value);
         }
-        environment.put(stmt.name.lexeme, value);
         return null;
     }
 
     @Override
     public Void visitDamStmt(Stmt.Dam stmt) {
-        Object value = evaluate(stmt.algorithm);
-        environment.put(stmt.name.lexeme, value);
+        if (lazy && stmt.reads == null) stmt.reads = Thunk.reads(stmt.algorithm);
+        Object value = defer(stmt.algorithm, stmt.reads, true);
+        if (value == null) {
+            value = memo == null ? evaluate(stmt.algorithm) : memo.evaluate(this, stmt.algorithm);
+        }
+        if (stmt.slot >= 0) {
+            frame[stmt.slot] = value;
+        } else {
+            define(stmt.name.lexeme, value);
+        }
         return null;
     }
 
     @Override
     public Void visitLabelStmt(Stmt.Label stmt) {
-        labels.put(stmt.name.lexeme, stmt.label);
+        label(stmt.name.lexeme, stmt.label);
         return null;
     }
 
+    // Output shared with the compiled execution tiers. Lines are built in a
+    // reused buffer so numbers are written without intermediate strings.
+    void printRainfall(Object value) {
+        line.setLength(0);
+        line.append("Rainfall set to ");
+        printValue(value, " mm");
+    }
+
+    void printRiver(String name, String type) {
+        context.out.println("River " + name + " declared as " + type);
+    }
+
+    void printRiverWithFlow(String name, Object flowRate) {
+        line.setLength(0);
+        line.append("River ").append(name).append(" declared with flow ");
+        printValue(flowRate, " L/s");
+    }
+
+    void printRiverFlow(String from, String to) {
+        context.out.println("River " + from + " flows to " + to);
+    }
+
+    void printCombination(String name, String sources) {
+        context.out.println("River " + name + " combines: " + sources);
+    }
+
+    void printCombinationResult(String name, Object result) {
+        line.setLength(0);
+        line.append("River ").append(name).append(" set to combination result: ");
+        printValue(result, "");
+    }
+
+    void printFlow(String label, Object value) {
+        line.setLength(0);
+        line.append(label).append(": ");
+        printValue(value, " L/s");
+    }
+
+    void printResult(Object value) {
+        line.setLength(0);
+        line.append("= ");
+        printValue(value, "");
+    }
+
+    // Finishes a line whose text so far is in the buffer. An ensemble gets
+    // the value keyed by the line with {} in its place.
+    private void printValue(Object value, String suffix) {
+        if (realisation != null) {
+            realisation.output(line.append("{}").append(suffix).toString(), value);
+            return;
+        }
+        numbers.append(line, value);
+        context.out.println(line.append(suffix));
+    }
+
+    void label(String name, String label) {
+        labels.put(name, label);
+    }
+
     // Utility methods
-    private boolean isTruthy(Object obj) {
+    boolean isTruthy(Object obj) {
         if (obj == null) return false;
         if (obj instanceof Boolean) return (boolean) obj;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    boolean isEqual(Object a, Object b) {
         if (a == null) return b == null;
         return a.equals(b);
     }
 
-    private String autoLabel(String name) {
+    String autoLabel(String name) {
         if (name.contains("_day")) {
             String[] parts = name.split("_day");
             String damName = capitalize(parts[0]);
@@ -192,6 +658,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return "Flow from " + name;
     }
 
+    String joinSources(List<Token> sources) {
+        return String.join(", ", sources.stream().map(t -> t.lexeme).toList());
+    }
+
     private String capitalize(String s) {
         if (s.length() == 0) return s;
         return s.substring(0, 1).toUpperCase() + s.substring(1);
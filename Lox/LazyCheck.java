@@ -0,0 +1,73 @@
+package Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// Runs programs eagerly and with lazy declarations, and reports any
+// difference in their output. Deferring a declaration may skip work, but
+// never change what is printed, which error is reported, or turn a program
+// that runs into one that crashes.
+class LazyCheck {
+    // Long enough that forcing it one thunk per frame would overflow the stack.
+    private static final int CHAIN = 20_000;
+
+    private static final String[][] PROGRAMS = {
+        { "unused formula",
+            "rainfall = 4; var a = rainfall * 2 + 1; var b = a * a - 3; a;" },
+        { "reassigned after declaring",
+            "var x = 2; var y = x * 10; x = 5; y; x;" },
+        { "output between declarations",
+            "var x = 1; x; var y = x + 1; y; var z = y + x; z;" },
+        { "undefined read",
+            "var a = 1; var b = a + missing; a;" },
+        { "operand that may be a string",
+            "var s = 1; s = \"abc\"; var t = s - 1; 0;" },
+        { "chain of declarations", chain() },
+        { "chain of dams", chain().replace("var ", "dam ") },
+    };
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (String[] program : PROGRAMS) {
+            String expected = run(program[1], false);
+            String actual = run(program[1], true);
+            if (expected.equals(actual)) {
+                System.out.println("OK   " + program[0]);
+            } else {
+                System.out.println("FAIL " + program[0]);
+                System.out.println("--- eager\n" + expected + "--- lazy\n" + actual);
+                failures++;
+            }
+        }
+
+        if (failures > 0) System.exit(1);
+    }
+
+    // a0 = 1, then each name one more than the last, then the last printed.
+    private static String chain() {
+        StringBuilder source = new StringBuilder("var a0 = 1;\n");
+        for (int i = 1; i <= CHAIN; i++) {
+            source.append("var a").append(i).append(" = a").append(i - 1).append(" + 1;\n");
+        }
+        return source.append('a').append(CHAIN).append(";\n").toString();
+    }
+
+    private static String run(String source, boolean lazy) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(buffer, true);
+        Context context = new Context(capture, capture);
+        List<Stmt> statements = new Parser(new Scanner(source, context).scanTokens(), context).parseStatements();
+        new TypeChecker(context).check(statements);
+        if (!context.hadError) {
+            Interpreter interpreter = new Interpreter(context);
+            if (lazy) interpreter.useLazyDeclarations();
+            try {
+                interpreter.interpret(statements);
+            } catch (RuntimeException | StackOverflowError e) {
+                capture.println(e);
+            }
+        }
+        return buffer.toString();
+    }
+}
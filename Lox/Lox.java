@@ -1,37 +1,364 @@
 package Lox;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Lox {
-    static boolean hadError = false;
+    private static boolean useClosures = false;
+    private static boolean useVm = false;
+    private static boolean useSpecializedNodes = false;
+    private static boolean eliminateCommonSubexpressions = false;
+    private static boolean runInParallel = false;
+    private static boolean watch = false;
+    private static boolean lazy = false;
+    private static String streamFrom = null;
+    private static long streamWindow = 1000;
+    private static Memo memo = null;
+    private static List<String> queryTargets = null;
+    private static String prelude = null;
+    private static Path restoreFrom = null;
+    private static Path saveTo = null;
+    private static int precision = NumberFormatter.SHORTEST;
+    private static int ensembleRuns = 0;
+    private static long ensembleSeed = 0;
+    private static double ensembleSpread = 0.2;
+    // Parsed modules, shared by every program this run loads.
+    private static final Modules modules = new Modules();
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            switch (args[i]) {
+                case "--closures": useClosures = true; break;
+                case "--vm": useVm = true; break;
+                case "--specialize": useSpecializedNodes = true; break;
+                case "--cse": eliminateCommonSubexpressions = true; break;
+                case "--parallel": runInParallel = true; break;
+                case "--watch": watch = true; break;
+                case "--lazy": lazy = true; break;
+                case "--stream":
+                    if (++i == args.length) usage();
+                    streamFrom = args[i];
+                    break;
+                case "--window":
+                    if (++i == args.length) usage();
+                    streamWindow = parseNumber(args[i], 1, Long.MAX_VALUE);
+                    break;
+                case "--precision":
+                    if (++i == args.length) usage();
+                    precision = (int) parseNumber(args[i], 0, NumberFormatter.MAX_PRECISION);
+                    break;
+                case "--ensemble":
+                    if (++i == args.length) usage();
+                    ensembleRuns = (int) parseNumber(args[i], 1, Integer.MAX_VALUE);
+                    break;
+                case "--seed":
+                    if (++i == args.length) usage();
+                    ensembleSeed = parseNumber(args[i], Long.MIN_VALUE, Long.MAX_VALUE);
+                    break;
+                case "--spread":
+                    if (++i == args.length) usage();
+                    try {
+                        ensembleSpread = Double.parseDouble(args[i]);
+                    } catch (NumberFormatException e) {
+                        usage();
+                    }
+                    if (!(ensembleSpread >= 0)) usage();
+                    break;
+                case "--prelude":
+                    if (++i == args.length) usage();
+                    prelude = args[i];
+                    break;
+                case "--restore":
+                    if (++i == args.length) usage();
+                    restoreFrom = Paths.get(args[i]);
+                    break;
+                case "--save":
+                    if (++i == args.length) usage();
+                    saveTo = Paths.get(args[i]);
+                    break;
+                case "--memo":
+                    if (++i == args.length) usage();
+                    memo = new Memo((int) parseNumber(args[i], 1, Integer.MAX_VALUE));
+                    break;
+                case "--query":
+                    if (++i == args.length) usage();
+                    queryTargets = Arrays.asList(args[i].split(","));
+                    break;
+                default: usage();
+            }
+        }
+
+        int engines = (useClosures ? 1 : 0) + (useVm ? 1 : 0) + (useSpecializedNodes ? 1 : 0);
+        // Ensembles run on the tree walker, which is where inputs are perturbed.
+        boolean snapshots = restoreFrom != null || saveTo != null;
+        // Parallel statements run on tree-walking workers, which keep no shared subexpressions.
+        boolean parallel = runInParallel && (useClosures || useVm || eliminateCommonSubexpressions
+                || ensembleRuns > 0 || prelude != null);
+        // Watching re-runs one script on the tree walker from forked checkpoints.
+        boolean watching = watch && (args.length - i != 1 || useClosures || useVm || eliminateCommonSubexpressions
+                || runInParallel || queryTargets != null || ensembleRuns > 0 || prelude != null || snapshots);
+        // Streaming runs one model on the tree walker, which is where inputs are read.
+        boolean streaming = streamFrom != null && (args.length - i != 1 || useClosures || useVm
+                || eliminateCommonSubexpressions || runInParallel || watch || ensembleRuns > 0 || prelude != null
+                || snapshots);
+        // Cached results are looked up by the tree walker's dam and combination statements.
+        boolean memoizing = memo != null && (useClosures || useVm);
+        // Lazy declarations are tree-walker values, read by one thread from
+        // one interpreter that is never forked or saved.
+        boolean deferring = lazy && (useClosures || useVm || eliminateCommonSubexpressions || runInParallel || watch
+                || prelude != null || snapshots);
+        // The VM has no cache for shared subexpressions and would recompute them.
+        boolean sharing = eliminateCommonSubexpressions && useVm;
+        if (engines > 1 || parallel || watching || streaming || memoizing || deferring || sharing
+                || (ensembleRuns > 0 && (useClosures || useVm))
+                || (snapshots && (useVm || ensembleRuns > 0 || prelude != null))) {
+            usage();
+        }
+        if (memo != null) {
+            // Reported however the run ends, including an interrupted watch or stream.
+            Runtime.getRuntime().addShutdownHook(new Thread(memo::report));
+        }
+
+        if (watch) {
+            readScript(args[i]);
+            new Watcher(Paths.get(args[i]), context -> interpreter(context, null)).watch();
+        } else if (streamFrom != null) {
+            runStream(args[i]);
+        } else if (prelude != null) {
+            if (args.length == i) usage();
+            runVariants(prelude, Arrays.copyOfRange(args, i, args.length));
+        } else if (args.length - i > 1) {
+            if (saveTo != null) usage();
+            runFiles(Arrays.copyOfRange(args, i, args.length));
+        } else if (args.length - i == 1) {
+            runFile(args[i]);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: jlox [--closures | --vm | --specialize] [--cse | --parallel] [--precision digits] [--query name,...] [--memo entries] [--lazy] [--ensemble runs [--seed n] [--spread sigma]] [--prelude script] [--restore snapshot] [--save snapshot] [--watch | --stream feed [--window millis]] [script...]");
+        System.exit(64);
+    }
+
+    private static long parseNumber(String digits, long min, long max) {
+        try {
+            long value = Long.parseLong(digits);
+            if (value >= min && value <= max) return value;
+        } catch (NumberFormatException e) {
+            // Falls through to the usage message.
+        }
+        usage();
+        return min;
+    }
+
     private static void runFile(String path) throws IOException {
+        Context context = new Context();
+        run(Paths.get(path), readScript(path), modules, context);
+
+        if (context.hadError) System.exit(65);
+    }
+
+    // Runs several scripts concurrently on a shared pool. Each script writes
+    // to its own buffers, which are printed in argument order. Scripts that
+    // import the same module share its parsed tree, so once each has been
+    // checked on its own for errors, they are all checked again together;
+    // the types that check proves hold for every one of them.
+    private static void runFiles(String[] paths) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (String path : paths) {
+            sources.add(readScript(path));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<ByteArrayOutputStream> outs = new ArrayList<>();
+        List<ByteArrayOutputStream> errs = new ArrayList<>();
+        List<Context> contexts = new ArrayList<>();
+        List<Future<Script>> prepared = new ArrayList<>();
+        for (int p = 0; p < paths.length; p++) {
+            Path path = Paths.get(paths[p]);
+            String source = sources.get(p);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            Context context = new Context(new PrintStream(out, true), new PrintStream(err, true));
+            outs.add(out);
+            errs.add(err);
+            contexts.add(context);
+            prepared.add(pool.submit(() -> prepare(modules.link(path, source, context), context)));
+        }
+
+        List<Script> scripts = new ArrayList<>();
+        List<Stmt> together = new ArrayList<>();
+        TypeChecker checker = new TypeChecker(Context.silent());
+        try {
+            for (Future<Script> result : prepared) {
+                Script script = result.get();
+                scripts.add(script);
+                if (script == null) continue;
+                if (script.snapshot != null) script.snapshot.assume(checker);
+                together.addAll(script.statements);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        checker.check(together);
+
+        List<Future<?>> results = new ArrayList<>();
+        for (int p = 0; p < paths.length; p++) {
+            Script script = scripts.get(p);
+            Context context = contexts.get(p);
+            results.add(pool.submit(() -> {
+                if (script != null) execute(script, context);
+            }));
+        }
+        pool.shutdown();
+
+        boolean hadError = false;
+        for (int p = 0; p < paths.length; p++) {
+            try {
+                results.get(p).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            System.out.print(outs.get(p));
+            System.err.print(errs.get(p));
+            hadError |= contexts.get(p).hadError;
+        }
+
+        if (hadError) System.exit(65);
+    }
+
+    // Runs the prelude once, then each variant on its own fork of the
+    // prelude's interpreter. Variants are parsed and run concurrently; their
+    // output is printed in argument order after the prelude's.
+    private static void runVariants(String preludePath, String[] paths) throws IOException {
+        Context context = new Context();
+        List<Stmt> statements = parse(Paths.get(preludePath), readScript(preludePath), context);
+        if (context.hadError) System.exit(65);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<ByteArrayOutputStream> outs = new ArrayList<>();
+        List<ByteArrayOutputStream> errs = new ArrayList<>();
+        List<Context> variants = new ArrayList<>();
+        List<Future<List<Stmt>>> parsed = new ArrayList<>();
+        for (String path : paths) {
+            String source = readScript(path);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            Context variant = new Context(new PrintStream(out, true), new PrintStream(err, true));
+            outs.add(out);
+            errs.add(err);
+            variants.add(variant);
+            parsed.add(pool.submit(() -> parse(Paths.get(path), source, variant)));
+        }
+
+        // Variants call the prelude's functions with arguments of their own,
+        // so the prelude is checked once more together with all of them. The
+        // types that check proves hold for every variant, so the numeric
+        // paths it leaves marked are safe whichever variant runs.
+        List<List<Stmt>> programs = new ArrayList<>();
+        List<Stmt> together = new ArrayList<>(statements);
+        try {
+            for (int v = 0; v < paths.length; v++) {
+                List<Stmt> program = parsed.get(v).get();
+                programs.add(program);
+                if (!variants.get(v).hadError) together.addAll(program);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        new TypeChecker(Context.silent()).check(together);
+
+        Interpreter base = interpreter(context, null);
+        base.interpret(statements);
+
+        List<Future<String[]>> results = new ArrayList<>();
+        for (int v = 0; v < paths.length; v++) {
+            String path = paths[v];
+            ByteArrayOutputStream out = outs.get(v);
+            ByteArrayOutputStream err = errs.get(v);
+            Context variant = variants.get(v);
+            List<Stmt> program = programs.get(v);
+            // Forks are taken here, one after another; only running them is concurrent.
+            Interpreter fork = base.fork(variant);
+            results.add(pool.submit(() -> {
+                if (!variant.hadError) fork.interpret(program);
+                return new String[] { "== " + path + "\n" + out, err.toString(), variant.hadError ? "error" : "" };
+            }));
+        }
+        pool.shutdown();
+
+        boolean hadError = false;
+        for (Future<String[]> result : results) {
+            try {
+                String[] output = result.get();
+                System.out.print(output[0]);
+                System.err.print(output[1]);
+                hadError |= !output[2].isEmpty();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+        }
+
+        if (hadError) System.exit(65);
+    }
+
+    // Runs the model on each batch of readings from a file, a named pipe or,
+    // given "-", standard input, until the feed ends.
+    private static void runStream(String path) throws IOException {
+        Context context = new Context();
+        List<Stmt> statements = parse(Paths.get(path), readScript(path), context);
+        if (context.hadError) System.exit(65);
+        if (queryTargets != null) statements = Slicer.slice(statements, queryTargets);
+
+        BufferedReader feed;
+        try {
+            feed = streamFrom.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Paths.get(streamFrom), Charset.defaultCharset());
+        } catch (NoSuchFileException e) {
+            System.err.println("Error: No feed at " + streamFrom + ".");
+            System.exit(66);
+            return;
+        }
+        try (feed) {
+            new Feed(statements, streamWindow, run -> interpreter(run, null)).run(feed);
+        }
+    }
+
+    private static List<Stmt> parse(Path path, String source, Context context) {
+        List<Stmt> statements = modules.link(path, source, context).statements;
+        if (!context.hadError) new TypeChecker(context).check(statements);
+        return statements;
+    }
+
+    private static String readScript(String path) throws IOException {
         if (!path.endsWith(".riv")) {
             System.err.println("Error: Only .riv files are accepted.");
             System.exit(66); // Custom exit code for invalid file type
         }
 
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-
-        if (hadError) System.exit(65);
+        return new String(bytes, Charset.defaultCharset());
     }
 
     private static void runPrompt() throws IOException {
@@ -42,42 +369,122 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-            hadError = false;
+            run(null, line, modules, new Context());
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parseStatements();
-        
-        // Stop if there was a syntax error.
-        if (hadError) return;
-        
-        // Interpret the statements
-        Interpreter interpreter = new Interpreter();
-        interpreter.interpret(statements);
+    static void run(Path path, String source, Modules modules, Context context) {
+        Script script = prepare(modules.link(path, source, context), context);
+        if (script != null) execute(script, context);
     }
 
-    static void error(int line, String message) {
-        report(line,"", message);
+    // A linked program, sliced and with common subexpressions shared as the
+    // flags ask, that has passed the type checker, and the snapshot it
+    // starts from, if any.
+    private static final class Script {
+        final Modules.Program program;
+        final List<Stmt> statements;
+        final CommonSubexpressions cse;
+        final Snapshot snapshot;
+
+        Script(Modules.Program program, List<Stmt> statements, CommonSubexpressions cse, Snapshot snapshot) {
+            this.program = program;
+            this.statements = statements;
+            this.cse = cse;
+            this.snapshot = snapshot;
+        }
     }
 
-    private static void report(int line, String where, String message) {
+    // Returns null if the program has an error and can't run.
+    private static Script prepare(Modules.Program program, Context context) {
+        List<Stmt> statements = program.statements;
+
+        // Stop if there was a syntax error.
+        if (context.hadError) return null;
         
-        System.err.println(
-            "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        if (queryTargets != null) {
+            statements = Slicer.slice(statements, queryTargets);
+        }
+        CommonSubexpressions cse = null;
+        if (eliminateCommonSubexpressions) {
+            cse = CommonSubexpressions.eliminate(statements);
+            statements = cse.statements;
+        }
+
+        // The program starts from the restored globals, so it is checked
+        // against what they hold.
+        TypeChecker checker = new TypeChecker(context);
+        Snapshot snapshot = null;
+        if (restoreFrom != null) {
+            try {
+                snapshot = Snapshot.read(restoreFrom);
+                snapshot.assume(checker);
+            } catch (IOException e) {
+                context.err.println("Error: " + e.getMessage());
+                context.hadError = true;
+                return null;
+            }
+        }
+
+        // Stop if the program can't run without a type error.
+        checker.check(statements);
+        if (context.hadError) return null;
+        return new Script(program, statements, cse, snapshot);
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static void execute(Script script, Context context) {
+        List<Stmt> statements = script.statements;
+        CommonSubexpressions cse = script.cse;
+        Modules.Program program = script.program;
+
+        // Interpret the statements
+        if (ensembleRuns > 0) {
+            int digits = precision == NumberFormatter.SHORTEST ? 3 : precision;
+            new Ensemble(statements, ensembleRuns, ensembleSeed, ensembleSpread)
+                .run(context, new NumberFormatter(digits), run -> interpreter(run, cse));
+            return;
+        }
+
+        Interpreter interpreter = interpreter(context, cse);
+        List<String> sources = new ArrayList<>();
+        Map<Stmt, Integer> origins = new IdentityHashMap<>();
+        try {
+            if (script.snapshot != null) {
+                script.snapshot.restore(interpreter, origins);
+                sources.addAll(script.snapshot.sources);
+            }
+
+            if (useClosures) {
+                interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+            } else if (useVm) {
+                interpreter.interpret(() -> new VM(interpreter).run(new BytecodeCompiler(interpreter).compile(statements)));
+            } else if (runInParallel) {
+                interpreter.interpretInParallel(statements);
+            } else {
+                interpreter.interpret(statements);
+            }
+
+            if (saveTo != null) {
+                for (int m = 0; m < program.modules.size(); m++) {
+                    if (Snapshot.declaresFunctions(program.modules.get(m), sources.size(), origins)) {
+                        sources.add(program.sources.get(m));
+                    }
+                }
+                Snapshot.of(interpreter, sources, origins).write(saveTo);
+            }
+        } catch (IOException e) {
+            context.err.println("Error: " + e.getMessage());
+            context.hadError = true;
         }
     }
+
+    private static Interpreter interpreter(Context context, CommonSubexpressions cse) {
+        Interpreter interpreter = runInParallel ? Interpreter.concurrent(context) : new Interpreter(context);
+        if (cse != null) interpreter.useSharedSubexpressions(cse);
+        if (memo != null) interpreter.useMemo(memo);
+        if (lazy) interpreter.useLazyDeclarations();
+        if (useSpecializedNodes) interpreter.useSpecializedNodes();
+        if (precision != NumberFormatter.SHORTEST) interpreter.useFixedPrecision(precision);
+        return interpreter;
+    }
 }
@@ -0,0 +1,31 @@
+package Lox;
+
+class LoxFunction {
+    final Stmt.Function declaration;
+    final Environment closure;
+    // The returned expression when the body is a single return statement,
+    // which is how most formulas are written. Calls to these skip statement
+    // execution and the Return unwinding entirely.
+    final Expr formula;
+
+    LoxFunction(Stmt.Function declaration, Environment closure) {
+        this.declaration = declaration;
+        this.closure = closure;
+
+        Expr formula = null;
+        if (declaration.body.size() == 1 && declaration.body.get(0) instanceof Stmt.Return) {
+            formula = ((Stmt.Return) declaration.body.get(0)).value;
+            if (formula == null) formula = new Expr.Literal(null);
+        }
+        this.formula = formula;
+    }
+
+    int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
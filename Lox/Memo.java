@@ -0,0 +1,214 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Results of dam and combination expressions, reused when the same
+// expression sees the same inputs again. An entry is keyed by the
+// expression's structure and the exact values of the variables it reads,
+// so equal sub-models in different scripts, variants, ensemble runs or
+// stream batches share entries. One cache serves every interpreter in the
+// process; it holds at most a fixed number of entries and evicts the least
+// recently used.
+//
+// Expressions that call functions or assign may do something besides
+// produce their value, so they are always evaluated.
+class Memo {
+    private static final Object NIL = new Object();
+
+    // What the cache needs to know about one expression, worked out once.
+    private static final class Shape {
+        final String structure;
+        final Expr.Variable[] reads;
+
+        Shape(String structure, Expr.Variable[] reads) {
+            this.structure = structure;
+            this.reads = reads;
+        }
+    }
+
+    private static final class Key {
+        final String structure;
+        final Object[] values;
+        final int hash;
+
+        Key(String structure, Object[] values) {
+            this.structure = structure;
+            this.values = values;
+            this.hash = structure.hashCode() * 31 + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return hash == key.hash && structure.equals(key.structure) && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final Shape IMPURE = new Shape(null, null);
+
+    private final int capacity;
+    private final Map<Key, Object> entries;
+    // Shapes of the expressions seen so far, dropped along with their trees.
+    private final Map<Expr, Shape> shapes = Collections.synchronizedMap(new WeakHashMap<>());
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long skipped = 0;
+
+    Memo(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                if (size() <= Memo.this.capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    Object evaluate(Interpreter interpreter, Expr expr) {
+        Shape shape = shapes.computeIfAbsent(expr, Memo::shape);
+        if (shape == IMPURE) {
+            synchronized (this) {
+                skipped++;
+            }
+            return interpreter.evaluate(expr);
+        }
+
+        Object[] values = new Object[shape.reads.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = interpreter.read(shape.reads[i]);
+            }
+        } catch (RuntimeError error) {
+            // Evaluating reports whichever error comes first, as without the cache.
+            return interpreter.evaluate(expr);
+        }
+        Key key = new Key(shape.structure, values);
+        synchronized (this) {
+            Object cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached == NIL ? null : cached;
+            }
+            misses++;
+        }
+
+        Object value = interpreter.evaluate(expr);
+        synchronized (this) {
+            entries.put(key, value == null ? NIL : value);
+        }
+        return value;
+    }
+
+    synchronized void report() {
+        long lookups = hits + misses;
+        System.err.printf("[memo] %d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d entries, %d impure%n",
+            hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, entries.size(), capacity, skipped);
+    }
+
+    private static Shape shape(Expr expr) {
+        Structure structure = new Structure();
+        expr.accept(structure);
+        if (structure.impure) return IMPURE;
+        return new Shape(structure.text.toString(), structure.reads.toArray(new Expr.Variable[0]));
+    }
+
+    // Writes an expression out unambiguously, noting the variables it reads
+    // in the order it reads them.
+    private static final class Structure implements Expr.Visitor<Void> {
+        final StringBuilder text = new StringBuilder();
+        final List<Expr.Variable> reads = new ArrayList<>();
+        boolean impure = false;
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // Long chains are walked along their left spine, as elsewhere.
+            Expr.Binary[] spine = expr.spine();
+            for (int i = 0; i < spine.length; i++) {
+                text.append('(');
+            }
+            spine[0].left.accept(this);
+            for (Expr.Binary binary : spine) {
+                text.append(' ').append(binary.operator.lexeme).append(' ');
+                binary.right.accept(this);
+                text.append(')');
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            impure = true;
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if (value == null) {
+                text.append("nil");
+            } else if (value instanceof String) {
+                text.append('"').append(((String) value).length()).append(':').append(value);
+            } else {
+                text.append(value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            text.append('(').append(expr.operator.lexeme);
+            expr.right.accept(this);
+            text.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            text.append('$').append(reads.size());
+            reads.add(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitSharedExpr(Expr.Shared expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitSumExpr(Expr.Sum expr) {
+            text.append("(sum");
+            for (Expr term : expr.terms) {
+                text.append(' ');
+                term.accept(this);
+            }
+            text.append(')');
+            return null;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package Lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Loads a script and the modules it imports, and links them into one
+// program. An import names a .riv file relative to the importing one. The
+// imported module's statements run where the first import of it appears;
+// later imports of the same module do nothing, and an import that leads
+// back to a module still being linked is an error.
+//
+// Imports are found a level at a time, and each level's modules are read,
+// scanned and parsed in parallel, as are the statements of a long module.
+// Parsed modules are cached by path and reused for as long as their text is
+// unchanged, so loading a model again after editing one file parses only
+// that file.
+//
+// One Modules serves every program a run loads, so a module imported by
+// several of them is parsed once and its tree shared. The type checker
+// records facts about the whole program in the trees, so programs that
+// share modules and run at the same time are checked together as well.
+class Modules {
+    // One parsed file, or why it couldn't be read.
+    private static final class Module {
+        final Path path;
+        final String source;
+        final List<Stmt> statements;
+        final List<Parser.Import> imports;
+        final List<String> diagnostics;
+        final IOException failure;
+
+        Module(Path path, String source) {
+            Context context = Context.silent();
+            Parser parser = new Parser(new Scanner(source, context).scanTokens(), context);
+            this.path = path;
+            this.source = source;
+            this.statements = parser.parseInParallel();
+            this.imports = parser.imports;
+            this.diagnostics = context.diagnostics;
+            this.failure = null;
+        }
+
+        Module(Path path, IOException failure) {
+            this.path = path;
+            this.source = null;
+            this.statements = null;
+            this.imports = null;
+            this.diagnostics = null;
+            this.failure = failure;
+        }
+    }
+
+    // A linked program. Snapshots also need each module's source and its
+    // own top-level statements.
+    static final class Program {
+        final List<Stmt> statements = new ArrayList<>();
+        final List<String> sources = new ArrayList<>();
+        final List<List<Stmt>> modules = new ArrayList<>();
+    }
+
+    private final Map<Path, Module> cache = new HashMap<>();
+    // Modules scanned and parsed by the last link, rather than reused.
+    int parsed = 0;
+
+    // Links the script at path, which may be null for one typed at the
+    // prompt, whose imports are relative to the working directory.
+    Program link(Path path, String source, Context context) {
+        Path main = path == null ? null : path.toAbsolutePath().normalize();
+        parsed = 0;
+        Module root = module(main, source);
+
+        Map<Path, Module> loaded = new HashMap<>();
+        if (main != null) loaded.put(main, root);
+        Set<Path> frontier = imports(root, loaded);
+        while (!frontier.isEmpty()) {
+            List<Callable<Module>> tasks = new ArrayList<>();
+            for (Path module : frontier) {
+                tasks.add(() -> load(module));
+            }
+            Set<Path> next = new LinkedHashSet<>();
+            try {
+                for (Future<Module> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                    Module module = result.get();
+                    loaded.put(module.path, module);
+                    next.addAll(imports(module, loaded));
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            next.removeAll(loaded.keySet());
+            frontier = next;
+        }
+
+        Program program = new Program();
+        new Linker(main, loaded, program, context).link(root);
+        return program;
+    }
+
+    // Imports of a module that haven't been loaded yet.
+    private Set<Path> imports(Module module, Map<Path, Module> loaded) {
+        Set<Path> paths = new LinkedHashSet<>();
+        if (module.failure != null) return paths;
+        for (Parser.Import i : module.imports) {
+            Path path = resolve(module, i);
+            if (path.toString().endsWith(".riv") && !loaded.containsKey(path)) paths.add(path);
+        }
+        return paths;
+    }
+
+    private static Path resolve(Module module, Parser.Import i) {
+        Path base = module.path == null ? Paths.get("") : module.path.getParent();
+        return base.resolve((String) i.path.literal).toAbsolutePath().normalize();
+    }
+
+    private Module load(Path path) {
+        try {
+            return module(path, new String(Files.readAllBytes(path), Charset.defaultCharset()));
+        } catch (IOException e) {
+            return new Module(path, e);
+        }
+    }
+
+    private Module module(Path path, String source) {
+        if (path != null) {
+            synchronized (cache) {
+                Module cached = cache.get(path);
+                if (cached != null && cached.source.equals(source)) return cached;
+            }
+        }
+        Module module = new Module(path, source);
+        synchronized (cache) {
+            parsed++;
+            if (path != null) cache.put(path, module);
+        }
+        return module;
+    }
+
+    private static final class Linker {
+        private final Path main;
+        private final Map<Path, Module> loaded;
+        private final Program program;
+        private final Context context;
+        // Modules being linked, outermost first.
+        private final List<Path> stack = new ArrayList<>();
+        private final Set<Path> linked = new HashSet<>();
+
+        Linker(Path main, Map<Path, Module> loaded, Program program, Context context) {
+            this.main = main;
+            this.loaded = loaded;
+            this.program = program;
+            this.context = context;
+        }
+
+        void link(Module module) {
+            if (module.path != null) {
+                stack.add(module.path);
+                linked.add(module.path);
+            }
+            context.errors(origin(module), module.diagnostics);
+            program.sources.add(module.source);
+            program.modules.add(module.statements);
+
+            int next = 0;
+            for (Parser.Import i : module.imports) {
+                while (next < i.position) {
+                    program.statements.add(module.statements.get(next++));
+                }
+                Path path = resolve(module, i);
+                if (!path.toString().endsWith(".riv")) {
+                    error(module, i.path, "Can only import .riv files.");
+                } else if (stack.contains(path)) {
+                    List<String> cycle = new ArrayList<>();
+                    for (Path link : stack.subList(stack.indexOf(path), stack.size())) {
+                        cycle.add(name(link));
+                    }
+                    cycle.add(name(path));
+                    error(module, i.path, "Import cycle: " + String.join(" -> ", cycle) + ".");
+                } else if (linked.add(path)) {
+                    Module imported = loaded.get(path);
+                    if (imported.failure != null) {
+                        error(module, i.path, "Can't read module " + name(path) + ".");
+                    } else {
+                        link(imported);
+                    }
+                }
+            }
+            while (next < module.statements.size()) {
+                program.statements.add(module.statements.get(next++));
+            }
+
+            if (module.path != null) stack.remove(stack.size() - 1);
+        }
+
+        private void error(Module module, Token token, String message) {
+            if (Objects.equals(module.path, main)) {
+                context.error(token, message);
+                return;
+            }
+            Context scratch = Context.silent();
+            scratch.error(token, message);
+            context.errors(origin(module), scratch.diagnostics);
+        }
+
+        // Where a module's errors are reported from; the main script's need no prefix.
+        private String origin(Module module) {
+            return Objects.equals(module.path, main) ? null : name(module.path);
+        }
+
+        private String name(Path path) {
+            if (main == null) return path.toString();
+            return main.getParent().relativize(path).toString();
+        }
+    }
+}
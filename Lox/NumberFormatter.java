@@ -0,0 +1,117 @@
+package Lox;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Writes numbers for output straight into a caller's buffer instead of
+// building a String through Double.toString for each one.
+//
+// In [1e-3, 1e7) Double.toString prints plain notation. For whole numbers
+// and numbers with at most four decimals in that range the digits are
+// produced here directly: the shortest scaled integer that divides back to
+// the exact value. FormatCheck finds that matches Double.toString on
+// millions of such values. Everything else falls back to Double.toString,
+// which only promises the shortest digits from JDK 19 (JDK-4511638); before
+// that it can print more, such as 9.999999999999999E22 for 1e23. Those
+// values print just as they did before this formatter, on any JDK.
+//
+// With a fixed precision every number gets exactly that many decimals,
+// rounded half up the way String.format does.
+class NumberFormatter {
+    private static final int MAX_FRACTION_DIGITS = 4;
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    static final int SHORTEST = -1;
+    static final int MAX_PRECISION = 15;
+
+    private final int precision;
+
+    NumberFormatter(int precision) {
+        this.precision = precision;
+    }
+
+    void append(StringBuilder out, Object value) {
+        if (value instanceof Double) {
+            append(out, (double) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    void append(StringBuilder out, double value) {
+        if (precision == SHORTEST) {
+            appendShortest(out, value);
+        } else {
+            appendFixed(out, value);
+        }
+    }
+
+    private void appendShortest(StringBuilder out, double value) {
+        if (value == 0) {
+            out.append(Double.doubleToRawLongBits(value) < 0 ? "-0.0" : "0.0");
+            return;
+        }
+
+        double magnitude = Math.abs(value);
+        if (magnitude >= 1e-3 && magnitude < 1e7) {
+            long whole = (long) value;
+            if (whole == value) {
+                out.append(whole).append(".0");
+                return;
+            }
+            for (int digits = 1; digits <= MAX_FRACTION_DIGITS; digits++) {
+                long scaled = Math.round(value * POWERS_OF_TEN[digits]);
+                if (scaled / (double) POWERS_OF_TEN[digits] == value) {
+                    appendScaled(out, scaled, digits);
+                    return;
+                }
+            }
+        }
+
+        out.append(Double.toString(value));
+    }
+
+    private void appendFixed(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append(Double.toString(value));
+            return;
+        }
+
+        double scaled = Math.abs(value) * POWERS_OF_TEN[precision];
+        double fraction = scaled - Math.floor(scaled);
+        if (Double.doubleToRawLongBits(value) < 0) out.append('-');
+        // Near a tie String.format rounds the shortest decimal form rather
+        // than the binary value (1.005 becomes 1.01), and beyond 2^53 the
+        // scaled double has no fraction left; both go through BigDecimal.
+        if (scaled >= 0x1p53 || Math.abs(fraction - 0.5) < 1e-6) {
+            BigDecimal decimal = BigDecimal.valueOf(Math.abs(value));
+            out.append(decimal.setScale(precision, RoundingMode.HALF_UP).toPlainString());
+            return;
+        }
+
+        appendScaled(out, (long) Math.floor(scaled + 0.5), precision);
+    }
+
+    // Writes scaled / 10^digits in plain notation.
+    private static void appendScaled(StringBuilder out, long scaled, int digits) {
+        if (scaled < 0) {
+            out.append('-');
+            scaled = -scaled;
+        }
+        out.append(scaled / POWERS_OF_TEN[digits]);
+        if (digits == 0) return;
+
+        out.append('.');
+        long fraction = scaled % POWERS_OF_TEN[digits];
+        for (int i = digits - 1; i > 0 && fraction < POWERS_OF_TEN[i]; i--) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+}
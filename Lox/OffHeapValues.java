@@ -0,0 +1,190 @@
+package Lox;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Bindings kept outside the Java heap, for scopes with a very large number
+// of them. An open-addressing table in a direct buffer holds, per slot, the
+// name's hash, the kind of value and an 8-byte payload. Numbers, booleans
+// and nil live entirely in the table. The names, and values such as
+// strings and functions, sit in two flat arrays indexed by slot, so a
+// binding costs the heap two references rather than a map entry and a
+// boxed Double, and the collector has two arrays to trace instead of
+// millions of small objects.
+//
+// Reads box a number afresh each time. Those boxes die young, unlike a
+// HashMap's Doubles, which live as long as the binding.
+class OffHeapValues extends AbstractMap<String, Object> {
+    private static final int ENTRY = 16; // int hash, int kind, double value
+    private static final int KIND = 4;
+    private static final int VALUE = 8;
+
+    private static final int EMPTY = 0;
+    private static final int NUMBER = 1;
+    private static final int NIL = 2;
+    private static final int TRUE = 3;
+    private static final int FALSE = 4;
+    private static final int OBJECT = 5;
+
+    private ByteBuffer table;
+    private String[] names;
+    private Object[] objects;
+    private int mask;
+    private int size = 0;
+
+    OffHeapValues(Map<String, Object> values) {
+        int capacity = 16;
+        while (capacity < values.size() * 2) capacity <<= 1;
+        allocate(capacity);
+        putAll(values);
+    }
+
+    private void allocate(int capacity) {
+        table = ByteBuffer.allocateDirect(capacity * ENTRY).order(ByteOrder.nativeOrder());
+        names = new String[capacity];
+        objects = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return slot((String) key, hash(key)) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = slot((String) key, hash(key));
+        return slot < 0 ? null : read(slot);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int hash = hash(key);
+        int slot = slot(key, hash);
+        Object previous = null;
+        if (slot >= 0) {
+            previous = read(slot);
+        } else {
+            if ((size + 1) * 2 > mask + 1) grow();
+            slot = free(hash);
+            table.putInt(slot * ENTRY, hash);
+            names[slot] = key;
+            size++;
+        }
+        write(slot, value);
+        return previous;
+    }
+
+    private Object read(int slot) {
+        int at = slot * ENTRY;
+        switch (table.getInt(at + KIND)) {
+            case NUMBER: return table.getDouble(at + VALUE);
+            case TRUE: return true;
+            case FALSE: return false;
+            case OBJECT: return objects[slot];
+            default: return null;
+        }
+    }
+
+    private void write(int slot, Object value) {
+        int at = slot * ENTRY;
+        int kind;
+        if (value == null) {
+            kind = NIL;
+        } else if (value instanceof Double) {
+            kind = NUMBER;
+            table.putDouble(at + VALUE, (double) value);
+        } else if (value instanceof Boolean) {
+            kind = (boolean) value ? TRUE : FALSE;
+        } else {
+            kind = OBJECT;
+        }
+        objects[slot] = kind == OBJECT ? value : null;
+        table.putInt(at + KIND, kind);
+    }
+
+    // The slot holding a name, or -1.
+    private int slot(String name, int hash) {
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int at = slot * ENTRY;
+            if (table.getInt(at + KIND) == EMPTY) return -1;
+            if (table.getInt(at) == hash && names[slot].equals(name)) return slot;
+        }
+    }
+
+    private int free(int hash) {
+        int slot = hash & mask;
+        while (table.getInt(slot * ENTRY + KIND) != EMPTY) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        ByteBuffer oldTable = table;
+        String[] oldNames = names;
+        Object[] oldObjects = objects;
+        int capacity = mask + 1;
+        allocate(capacity * 2);
+        for (int slot = 0; slot < capacity; slot++) {
+            int at = slot * ENTRY;
+            if (oldTable.getInt(at + KIND) == EMPTY) continue;
+            int hash = oldTable.getInt(at);
+            int to = free(hash);
+            table.putInt(to * ENTRY, hash);
+            table.putInt(to * ENTRY + KIND, oldTable.getInt(at + KIND));
+            table.putDouble(to * ENTRY + VALUE, oldTable.getDouble(at + VALUE));
+            names[to] = oldNames[slot];
+            objects[to] = oldObjects[slot];
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int slot = advance(0);
+
+                    private int advance(int from) {
+                        while (from <= mask && table.getInt(from * ENTRY + KIND) == EMPTY) from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot <= mask;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (slot > mask) throw new NoSuchElementException();
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(names[slot], read(slot));
+                        slot = advance(slot + 1);
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+}
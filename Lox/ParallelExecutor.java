@@ -0,0 +1,205 @@
+package Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs top-level statements concurrently where the names they use allow
+// it. A statement waits for the earlier ones it conflicts with: the last
+// writer of each name it reads or writes, and every reader since then of
+// each name it writes. A statement that calls a function may touch any
+// global, so it waits for everything before it and everything after waits
+// for it.
+//
+// Each statement's output is buffered and printed in program order, so the
+// output is the same as a sequential run's. After a runtime error, output
+// stops at the failing statement, as it would there.
+class ParallelExecutor {
+    private final List<Stmt> statements;
+    private final int[][] successors;
+    private final AtomicIntegerArray pending;
+    private final String[] outputs;
+    private final RuntimeError[] errors;
+    // Statements after the earliest failure so far are skipped.
+    private final AtomicInteger firstError = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicReference<Throwable> crash = new AtomicReference<>();
+    private CountDownLatch remaining;
+    private ThreadLocal<Worker> workers;
+
+    ParallelExecutor(List<Stmt> statements) {
+        this.statements = statements;
+        int count = statements.size();
+        outputs = new String[count];
+        errors = new RuntimeError[count];
+
+        List<int[]> edges = dependencies(statements);
+        int[] degree = new int[count];
+        int[] predecessors = new int[count];
+        for (int[] edge : edges) {
+            degree[edge[0]]++;
+            predecessors[edge[1]]++;
+        }
+        successors = new int[count][];
+        for (int i = 0; i < count; i++) {
+            successors[i] = new int[degree[i]];
+        }
+        Arrays.fill(degree, 0);
+        for (int[] edge : edges) {
+            successors[edge[0]][degree[edge[0]]++] = edge[1];
+        }
+        pending = new AtomicIntegerArray(predecessors);
+    }
+
+    // Edges from each statement to the later ones that must wait for it.
+    private static List<int[]> dependencies(List<Stmt> statements) {
+        List<int[]> edges = new ArrayList<>();
+        Map<String, Integer> lastWriter = new HashMap<>();
+        Map<String, List<Integer>> readers = new HashMap<>();
+        int barrier = -1;
+
+        for (int i = 0; i < statements.size(); i++) {
+            Dependencies dependencies = Dependencies.of(statements.get(i));
+            if (dependencies.calls) {
+                for (int before = Math.max(barrier, 0); before < i; before++) {
+                    edges.add(new int[] { before, i });
+                }
+                barrier = i;
+                lastWriter.clear();
+                readers.clear();
+                continue;
+            }
+            if (barrier >= 0) edges.add(new int[] { barrier, i });
+
+            // A subject is described rather than assigned, but it still has
+            // to keep its place among the statements writing that name.
+            List<String> reads = new ArrayList<>(dependencies.reads);
+            reads.addAll(dependencies.subjects);
+            List<String> writes = new ArrayList<>(dependencies.writes);
+            writes.addAll(dependencies.subjects);
+
+            for (String name : reads) {
+                Integer writer = lastWriter.get(name);
+                if (writer != null) edges.add(new int[] { writer, i });
+                readers.computeIfAbsent(name, k -> new ArrayList<>()).add(i);
+            }
+            for (String name : writes) {
+                Integer writer = lastWriter.get(name);
+                if (writer != null && writer != i) edges.add(new int[] { writer, i });
+                List<Integer> since = readers.remove(name);
+                if (since != null) {
+                    for (int reader : since) {
+                        if (reader != i) edges.add(new int[] { reader, i });
+                    }
+                }
+                lastWriter.put(name, i);
+            }
+        }
+        return edges;
+    }
+
+    void run(Interpreter interpreter, Context context) {
+        remaining = new CountDownLatch(statements.size());
+        workers = ThreadLocal.withInitial(() -> new Worker(interpreter));
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            // Roots are found before any runs, since running ones release others.
+            List<Task> roots = new ArrayList<>();
+            for (int i = 0; i < statements.size(); i++) {
+                if (pending.get(i) == 0) roots.add(new Task(i));
+            }
+            for (Task root : roots) {
+                pool.execute(root);
+            }
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        Throwable failure = crash.get();
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw (RuntimeException) failure;
+
+        for (int i = 0; i < statements.size(); i++) {
+            if (outputs[i] != null) context.out.print(outputs[i]);
+            if (errors[i] != null) {
+                context.runtimeError(errors[i]);
+                break;
+            }
+        }
+    }
+
+    private void execute(int index) {
+        if (index > firstError.get()) return;
+
+        Worker worker = workers.get();
+        try {
+            worker.interpreter.execute(statements.get(index));
+        } catch (RuntimeError error) {
+            errors[index] = error;
+            firstError.accumulateAndGet(index, Math::min);
+        }
+        if (worker.buffer.size() > 0) {
+            outputs[index] = worker.buffer.toString();
+            worker.buffer.reset();
+        }
+    }
+
+    private final class Task extends RecursiveAction {
+        private final int index;
+
+        Task(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            // The first statement this one releases runs next on this
+            // thread; the rest are forked for other workers to steal.
+            int current = index;
+            while (current >= 0) {
+                try {
+                    execute(current);
+                } catch (Throwable e) {
+                    crash.compareAndSet(null, e);
+                    firstError.set(-1);
+                }
+                int next = -1;
+                for (int successor : successors[current]) {
+                    if (pending.decrementAndGet(successor) != 0) continue;
+                    if (next < 0) {
+                        next = successor;
+                    } else {
+                        new Task(successor).fork();
+                    }
+                }
+                remaining.countDown();
+                current = next;
+            }
+        }
+    }
+
+    // Each pool thread runs statements on its own interpreter, sharing the
+    // globals, and collects their output in its own buffer.
+    private static final class Worker {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final Interpreter interpreter;
+
+        Worker(Interpreter interpreter) {
+            PrintStream out = new PrintStream(buffer, true);
+            this.interpreter = interpreter.worker(new Context(out, out));
+        }
+    }
+}
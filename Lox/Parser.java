@@ -2,16 +2,50 @@ package Lox;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static Lox.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
+
+    // Locals of the function body being parsed, each bound to a frame slot.
+    private static class FunctionScope {
+        final List<Map<String, Integer>> scopes = new ArrayList<>();
+        int slots = 0;
+    }
+
+    // An import between top-level statements: the module's statements go
+    // before the statement at position.
+    static final class Import {
+        final Token path;
+        final int position;
+
+        Import(Token path, int position) {
+            this.path = path;
+            this.position = position;
+        }
+    }
+
+    // Slices parsed in parallel are at least this many tokens long, so
+    // shorter lists are parsed on one thread.
+    private static final int SLICE = 1 << 14;
+
+    final List<Import> imports = new ArrayList<>();
     private final List<Token> tokens;
+    private final Context context;
     private int current = 0;
+    private FunctionScope function = null;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, Context context) {
         this.tokens = tokens;
+        this.context = context;
     }
     
     Stmt parse() {
@@ -33,20 +67,112 @@ class Parser {
     List<Stmt> parseStatements() {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
+            if (match(IMPORT)) {
+                importDeclaration(statements.size());
+                continue;
+            }
             Stmt stmt = declaration();
             if (stmt != null) statements.add(stmt);
         }
         return statements;
     }
 
+    // Parses the same statements as parseStatements, splitting long token
+    // lists between top-level statements and parsing the slices on the
+    // common pool. Slices only end at a top-level ';', where a sequential
+    // parse recovering from an error would stop too, so each slice reports
+    // the same errors; they are replayed in order once all are parsed.
+    List<Stmt> parseInParallel() {
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) return parseStatements();
+        List<Integer> ends = slices();
+        if (ends.size() < 2) return parseStatements();
+
+        List<Parser> parsers = new ArrayList<>();
+        List<Callable<List<Stmt>>> tasks = new ArrayList<>();
+        int from = 0;
+        for (int end : ends) {
+            List<Token> slice = new ArrayList<>(end - from + 1);
+            slice.addAll(tokens.subList(from, end));
+            Token next = tokens.get(end);
+            slice.add(next.type == EOF ? next : new Token(EOF, "", null, next.line));
+            Parser parser = new Parser(slice, Context.silent());
+            parsers.add(parser);
+            tasks.add(parser::parseStatements);
+            from = end;
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        try {
+            List<Future<List<Stmt>>> results = ForkJoinPool.commonPool().invokeAll(tasks);
+            for (int p = 0; p < parsers.size(); p++) {
+                Parser parser = parsers.get(p);
+                context.errors(null, parser.context.diagnostics);
+                for (Import i : parser.imports) {
+                    imports.add(new Import(i.path, statements.size() + i.position));
+                }
+                statements.addAll(results.get(p).get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        current = tokens.size() - 1;
+        return statements;
+    }
+
+    // Indices just past a top-level ';', at least SLICE tokens apart; the
+    // last is the index of the EOF token.
+    private List<Integer> slices() {
+        List<Integer> ends = new ArrayList<>();
+        int braces = 0;
+        int parens = 0;
+        int from = 0;
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            switch (tokens.get(i).type) {
+                case LEFT_PAREN: parens++; break;
+                case RIGHT_PAREN: if (parens > 0) parens--; break;
+                case LEFT_BRACE: braces++; break;
+                case RIGHT_BRACE: if (braces > 0) braces--; break;
+                case SEMICOLON:
+                    if (braces == 0 && parens == 0 && i + 1 - from >= SLICE) {
+                        ends.add(i + 1);
+                        from = i + 1;
+                    }
+                    break;
+            }
+        }
+        if (tokens.size() - 1 - from < SLICE && !ends.isEmpty()) ends.remove(ends.size() - 1);
+        ends.add(tokens.size() - 1);
+        return ends;
+    }
+
+    // Imports are recorded rather than parsed into statements; Modules
+    // splices the imported statements in when it links the program.
+    private void importDeclaration(int position) {
+        try {
+            Token path = consume(STRING, "Expect module path.");
+            consume(SEMICOLON, "Expect ';' after import.");
+            imports.add(new Import(path, position));
+        } catch (ParseError error) {
+            synchronize();
+        }
+    }
+
     // Entry point for statements
     private Stmt declaration() {
         try {
+            if (match(IMPORT)) throw error(previous(), "Can only import at top level.");
+            if (match(FUN)) return function();
             if (match(RAINFALL)) return rainfallDeclaration();
-            if (match(RIVER)) return riverDeclaration();
+            if (match(RIVER)) {
+                if (function != null) throw error(previous(), "Can't declare a river inside a function.");
+                return riverDeclaration();
+            }
             if (match(VAR)) return varDeclaration();
             if (match(DAM)) return damDeclaration();
-            if (match(LABEL)) return labelDeclaration();
+            if (match(LABEL)) {
+                if (function != null) throw error(previous(), "Can't declare a label inside a function.");
+                return labelDeclaration();
+            }
             
             return statement();
         } catch (ParseError error) {
@@ -60,7 +186,100 @@ class Parser {
             // Allow empty statements like just a semicolon
             return null;
         }
-        return new Stmt.Expression(expression());
+        if (match(FOR)) return forStatement();
+        if (match(WHILE)) return whileStatement();
+        if (match(RETURN)) return returnStatement();
+        if (match(LEFT_BRACE)) {
+            beginScope();
+            List<Stmt> statements = block();
+            endScope();
+            return new Stmt.Block(statements);
+        }
+
+        Expr expr = expression();
+        match(SEMICOLON);
+        return new Stmt.Expression(expr);
+    }
+
+    private Stmt whileStatement() {
+        consume(LEFT_PAREN, "Expect '(' after 'while'.");
+        Expr condition = expression();
+        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        return new Stmt.While(condition, body());
+    }
+
+    private Stmt returnStatement() {
+        Token keyword = previous();
+        if (function == null) throw error(keyword, "Can't return from top-level code.");
+
+        Expr value = null;
+        if (!check(SEMICOLON)) {
+            value = expression();
+        }
+        consume(SEMICOLON, "Expect ';' after return value.");
+        return new Stmt.Return(keyword, value);
+    }
+
+    // A for loop is desugared into a while loop inside its own scope.
+    private Stmt forStatement() {
+        beginScope();
+        try {
+            return forClauses();
+        } finally {
+            endScope();
+        }
+    }
+
+    private Stmt forClauses() {
+        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+
+        Stmt initializer;
+        if (match(SEMICOLON)) {
+            initializer = null;
+        } else if (match(VAR)) {
+            initializer = varDeclaration();
+        } else {
+            initializer = new Stmt.Expression(expression());
+            consume(SEMICOLON, "Expect ';' after loop initializer.");
+        }
+
+        Expr condition = null;
+        if (!check(SEMICOLON)) {
+            condition = expression();
+        }
+        consume(SEMICOLON, "Expect ';' after loop condition.");
+
+        Expr increment = null;
+        if (!check(RIGHT_PAREN)) {
+            increment = expression();
+        }
+        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+
+        Stmt body = body();
+        if (increment != null) {
+            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
+        }
+        if (condition == null) condition = new Expr.Literal(true);
+        body = new Stmt.While(condition, body);
+        if (initializer != null) {
+            body = new Stmt.Block(Arrays.asList(initializer, body));
+        }
+        return body;
+    }
+
+    private Stmt body() {
+        Stmt body = statement();
+        return body != null ? body : new Stmt.Block(new ArrayList<>());
+    }
+
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            Stmt stmt = declaration();
+            if (stmt != null) statements.add(stmt);
+        }
+        consume(RIGHT_BRACE, "Expect '}' after block.");
+        return statements;
     }
 
     // DSL-specific river syntax
@@ -85,7 +304,7 @@ class Parser {
             }
 
             // Otherwise, treat it as a symbolic combination expression
-            Expr expr = expression();
+            Expr expr = sum(expression());
             consume(SEMICOLON, "Expect ';' after river combination.");
             return new Stmt.RiverCombinationExpr(name, expr);
         }
@@ -108,6 +327,22 @@ class Parser {
         throw error(peek(), "Invalid river statement.");
     }
 
+    // A combination that only adds its sources becomes one Sum node.
+    private Expr sum(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) return expr;
+        Expr.Binary[] spine = ((Expr.Binary) expr).spine();
+        if (spine.length < 2) return expr;
+        List<Expr> terms = new ArrayList<>();
+        List<Token> operators = new ArrayList<>();
+        terms.add(spine[0].left);
+        for (Expr.Binary binary : spine) {
+            if (binary.operator.type != PLUS) return expr;
+            terms.add(binary.right);
+            operators.add(binary.operator);
+        }
+        return new Expr.Sum(terms, operators);
+    }
+
     private Stmt rainfallDeclaration() {
         consume(EQUAL, "Expect '=' after 'rainfall'.");
         Token value = consume(NUMBER, "Expect rainfall value in mm.");
@@ -124,7 +359,9 @@ class Parser {
         }
 
         consume(SEMICOLON, "Expect ';' after variable declaration.");
-        return new Stmt.Var(name, initializer);
+        Stmt.Var stmt = new Stmt.Var(name, initializer);
+        stmt.slot = declareLocal(name);
+        return stmt;
     }
 
     private Stmt damDeclaration() {
@@ -132,7 +369,66 @@ class Parser {
         consume(EQUAL, "Expect '=' after dam name.");
         Expr algorithm = expression();
         consume(SEMICOLON, "Expect ';' after dam declaration.");
-        return new Stmt.Dam(name, algorithm);
+        Stmt.Dam stmt = new Stmt.Dam(name, algorithm);
+        stmt.slot = declareLocal(name);
+        return stmt;
+    }
+
+    private Stmt function() {
+        Token name = consume(IDENTIFIER, "Expect function name.");
+        if (function != null) throw error(name, "Functions can't be nested.");
+
+        function = new FunctionScope();
+        try {
+            beginScope();
+            consume(LEFT_PAREN, "Expect '(' after function name.");
+            List<Token> params = new ArrayList<>();
+            if (!check(RIGHT_PAREN)) {
+                do {
+                    Token param = consume(IDENTIFIER, "Expect parameter name.");
+                    params.add(param);
+                    declareLocal(param);
+                } while (match(COMMA));
+            }
+            consume(RIGHT_PAREN, "Expect ')' after parameters.");
+            consume(LEFT_BRACE, "Expect '{' before function body.");
+            List<Stmt> body = block();
+            return new Stmt.Function(name, params, body, function.slots);
+        } finally {
+            function = null;
+        }
+    }
+
+    // Slot resolution for function locals. Outside a function every name is
+    // looked up in the environment chain and these return -1.
+    private void beginScope() {
+        if (function != null) function.scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        if (function != null) function.scopes.remove(function.scopes.size() - 1);
+    }
+
+    private int declareLocal(Token name) {
+        if (function == null) return -1;
+
+        Map<String, Integer> scope = function.scopes.get(function.scopes.size() - 1);
+        Integer slot = scope.get(name.lexeme);
+        if (slot == null) {
+            slot = function.slots++;
+            scope.put(name.lexeme, slot);
+        }
+        return slot;
+    }
+
+    private int resolveLocal(Token name) {
+        if (function == null) return -1;
+
+        for (int i = function.scopes.size() - 1; i >= 0; i--) {
+            Integer slot = function.scopes.get(i).get(name.lexeme);
+            if (slot != null) return slot;
+        }
+        return -1;
     }
 
     private Stmt labelDeclaration() {
@@ -149,66 +445,138 @@ class Parser {
     }
 
     // Expression Parsing
-    private Expr expression() {
-        return equality();
+    //
+    // Binary and prefix operators are parsed by precedence climbing over
+    // explicit operand and operator stacks, so neither a long chain like
+    // a + b + c + ... nor deeply nested parentheses costs a Java frame per
+    // operator. Only call arguments recurse.
+    private static final int ASSIGNMENT = 1;
+    private static final int PREFIX = 6;
+
+    // A pending operator. An open parenthesis waits here too, as a prefix
+    // with no precedence of its own.
+    private static class Operator {
+        final Token token;
+        final int precedence;
+        final boolean prefix;
+
+        Operator(Token token, int precedence, boolean prefix) {
+            this.token = token;
+            this.precedence = precedence;
+            this.prefix = prefix;
+        }
+
+        boolean opensGroup() {
+            return token.type == LEFT_PAREN;
+        }
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
+    private Expr expression() {
+        List<Expr> operands = new ArrayList<>();
+        List<Operator> operators = new ArrayList<>();
+        int groups = 0;
+
+        for (;;) {
+            // An operand: prefix operators and open parentheses, then a primary.
+            for (;;) {
+                if (match(BANG, MINUS)) {
+                    operators.add(new Operator(previous(), PREFIX, true));
+                } else if (match(LEFT_PAREN)) {
+                    operators.add(new Operator(previous(), 0, true));
+                    groups++;
+                } else {
+                    break;
+                }
+            }
+            operands.add(call(primary()));
+
+            // Each ')' closes the group opened last.
+            while (groups > 0 && match(RIGHT_PAREN)) {
+                while (!last(operators).opensGroup()) {
+                    reduce(operands, pop(operators));
+                }
+                pop(operators);
+                groups--;
+                operands.add(call(new Expr.Grouping(pop(operands))));
+            }
 
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+            int precedence = precedence(peek().type);
+            if (precedence < 0) break;
+            Token operator = advance();
+            // Operators that bind at least as tightly are applied first, except
+            // that assignment groups to the right.
+            while (!operators.isEmpty() && !last(operators).opensGroup()) {
+                int top = last(operators).precedence;
+                if (top < precedence || (top == precedence && precedence == ASSIGNMENT)) break;
+                reduce(operands, pop(operators));
+            }
+            operators.add(new Operator(operator, precedence, false));
         }
 
-        return expr;
+        if (groups > 0) throw error(peek(), "Expect ')' after expression.");
+        while (!operators.isEmpty()) {
+            reduce(operands, pop(operators));
+        }
+        return operands.get(0);
     }
 
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private static int precedence(TokenType type) {
+        switch (type) {
+            case EQUAL: return ASSIGNMENT;
+            case BANG_EQUAL: case EQUAL_EQUAL: return 2;
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL: return 3;
+            case MINUS: case PLUS: return 4;
+            case SLASH: case STAR: return 5;
+            default: return -1;
         }
-
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    private void reduce(List<Expr> operands, Operator operator) {
+        Expr right = pop(operands);
+        if (operator.prefix) {
+            operands.add(new Expr.Unary(operator.token, right));
+        } else if (operator.token.type == EQUAL) {
+            operands.add(assignment(pop(operands), operator.token, right));
+        } else {
+            operands.add(new Expr.Binary(pop(operands), operator.token, right));
+        }
+    }
 
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr assignment(Expr target, Token equals, Expr value) {
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) target).name;
+            Expr.Assign assign = new Expr.Assign(name, value);
+            assign.slot = ((Expr.Variable) target).slot;
+            return assign;
         }
 
-        return expr;
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private static <T> T last(List<T> stack) {
+        return stack.get(stack.size() - 1);
+    }
 
-        return expr;
+    private static <T> T pop(List<T> stack) {
+        return stack.remove(stack.size() - 1);
     }
 
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    // Any calls applied to an operand.
+    private Expr call(Expr expr) {
+
+        while (match(LEFT_PAREN)) {
+            List<Expr> arguments = new ArrayList<>();
+            if (!check(RIGHT_PAREN)) {
+                do {
+                    arguments.add(expression());
+                } while (match(COMMA));
+            }
+            Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+            expr = new Expr.Call(expr, paren, arguments);
         }
 
-        return primary();
+        return expr;
     }
 
     private Expr primary() {
@@ -217,18 +585,18 @@ class Parser {
         if (match(NIL)) return new Expr.Literal(null);
         if (match(RAINFALL)) return new Expr.Variable(previous());
 
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+        if (match(NUMBER)) {
+            return new Expr.Literal(previous().number);
         }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+        if (match(STRING)) {
+            return new Expr.Literal(previous().literal);
         }
 
         if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
+            Expr.Variable variable = new Expr.Variable(previous());
+            variable.slot = resolveLocal(variable.name);
+            return variable;
         }
 
         throw error(peek(), "Expect expression.");
@@ -274,7 +642,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        context.error(token, message);
         return new ParseError();
     }
 
@@ -293,6 +661,7 @@ class Parser {
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case IMPORT:
                     return;
             }
 
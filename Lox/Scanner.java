@@ -9,10 +9,11 @@ import static Lox.TokenType.*;
 
 class Scanner {
     private final String source;
+    private final Context context;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
-    private int line = 1;
+    private int line;
     private static final Map<String, TokenType> keywords;
 
     static {
@@ -44,10 +45,53 @@ class Scanner {
         keywords.put("rainfall", TokenType.RAINFALL);
         keywords.put("with", TokenType.WITH);
         keywords.put("label", TokenType.LABEL);
+        keywords.put("import", TokenType.IMPORT);
     }
     
-    Scanner(String source) {
+    Scanner(String source, Context context) {
+        this(source, 1, context);
+    }
+
+    // For a piece of a larger script that starts on the given line.
+    Scanner(String source, int line, Context context) {
         this.source = source;
+        this.line = line;
+        this.context = context;
+    }
+
+    // Offsets just past each top-level statement: a ';' or a closing '}'
+    // outside any braces and parentheses. Strings and comments are skipped,
+    // so the pieces between offsets can be scanned and parsed on their own.
+    static List<Integer> statementEnds(String source) {
+        List<Integer> ends = new ArrayList<>();
+        int braces = 0;
+        int parens = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            switch (c) {
+                case '"':
+                    i = source.indexOf('"', i + 1);
+                    if (i < 0) return ends;
+                    break;
+                case '/':
+                    if (i + 1 < source.length() && source.charAt(i + 1) == '/') {
+                        i = source.indexOf('\n', i);
+                        if (i < 0) return ends;
+                    }
+                    break;
+                case '(': parens++; break;
+                case ')': if (parens > 0) parens--; break;
+                case '{': braces++; break;
+                case '}':
+                    if (braces > 0) braces--;
+                    if (braces == 0 && parens == 0) ends.add(i + 1);
+                    break;
+                case ';':
+                    if (braces == 0 && parens == 0) ends.add(i + 1);
+                    break;
+            }
+        }
+        return ends;
     }
 
     List<Token> scanTokens() {
@@ -114,7 +158,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();          
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    context.error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -129,18 +173,46 @@ class Scanner {
         addToken(type);
     }
 
+    // Digits are accumulated as they are scanned. When they fit in a double
+    // exactly and the power of ten does too, one correctly rounded division
+    // gives the same value parseDouble would (Clinger's fast path).
     private void number() {
-        while (isDigit(peek())) advance();
+        long digits = source.charAt(start) - '0';
+        boolean exact = true;
+        while (isDigit(peek())) {
+            digits = accumulate(digits, advance());
+            exact &= digits <= MAX_EXACT_DIGITS;
+        }
 
         // Look for a fractional part.
+        int fractionDigits = 0;
         if (peek() == '.' && isDigit(peekNext())) {
             // Consume the "."
             advance();
-            while (isDigit(peek())) advance();
+            while (isDigit(peek())) {
+                digits = accumulate(digits, advance());
+                exact &= digits <= MAX_EXACT_DIGITS;
+                fractionDigits++;
+            }
         }
 
-        addToken(NUMBER,
-            Double.parseDouble(source.substring(start, current)));
+        String text = source.substring(start, current);
+        double value = exact && fractionDigits < POWERS_OF_TEN.length
+            ? digits / POWERS_OF_TEN[fractionDigits]
+            : Double.parseDouble(text);
+        tokens.add(new Token(NUMBER, text, value, line));
+    }
+
+    private static final long MAX_EXACT_DIGITS = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Saturates instead of overflowing; anything past 2^53 is parsed the slow way.
+    private static long accumulate(long digits, char c) {
+        if (digits > MAX_EXACT_DIGITS) return digits;
+        return digits * 10 + (c - '0');
     }
 
     private void string() {
@@ -150,7 +222,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            context.error(line, "Unterminated string.");
             return;
         }
 
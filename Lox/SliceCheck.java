@@ -0,0 +1,65 @@
+package Lox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+// Runs programs in full and sliced for a query, and reports any target
+// whose value differs between the two. A slice may drop whatever the
+// targets don't depend on, but never change what a target ends up holding.
+class SliceCheck {
+    // A name, the targets it queries, and the program.
+    private static final String[][] PROGRAMS = {
+        { "declarations", "release",
+            "rainfall = 12; river a = root with 4; var spare = 9; dam release = a + rainfall * 0.5; release;" },
+        { "redefined target", "x",
+            "var x = 1; var y = x + 1; var x = y * 3; x;" },
+        { "call statement writing the target", "total",
+            "var total = 1; fun bump() { total = total + 1; } bump(); bump(); total;" },
+        { "call in an unrelated initializer", "total",
+            "var total = 1; fun bump() { total = total * 2; return 0; } var unused = bump(); total;" },
+        { "call through another function", "count",
+            "var count = 0; fun add(n) { count = count + n; } fun twice() { add(1); add(1); } twice(); count;" },
+    };
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (String[] program : PROGRAMS) {
+            List<String> targets = Arrays.asList(program[1].split(","));
+            List<Stmt> statements = parse(program[2]);
+            Interpreter full = run(statements);
+            Interpreter sliced = run(Slicer.slice(statements, targets));
+            boolean same = true;
+            for (String target : targets) {
+                Object expected = full.globals.getHere(target);
+                Object actual = sliced.globals.getHere(target);
+                if (!Objects.equals(expected, actual)) {
+                    System.out.println("FAIL " + program[0] + ": " + target + " is " + actual + ", not " + expected);
+                    same = false;
+                }
+            }
+            if (same) {
+                System.out.println("OK   " + program[0]);
+            } else {
+                failures++;
+            }
+        }
+
+        if (failures > 0) System.exit(1);
+    }
+
+    private static List<Stmt> parse(String source) {
+        Context context = Context.silent();
+        List<Stmt> statements = new Parser(new Scanner(source, context).scanTokens(), context).parseStatements();
+        if (context.hadError) throw new IllegalStateException("Program doesn't parse: " + source);
+        return statements;
+    }
+
+    private static Interpreter run(List<Stmt> statements) {
+        Context context = Context.silent();
+        Interpreter interpreter = new Interpreter(context);
+        interpreter.interpret(statements);
+        if (context.hadRuntimeError) throw new IllegalStateException(context.diagnostics.toString());
+        return interpreter;
+    }
+}
@@ -0,0 +1,49 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Backward slice of a program: keeps only the statements the requested
+// targets depend on, then reports each target the way a bare 'name;'
+// statement would.
+class Slicer {
+    static List<Stmt> slice(List<Stmt> statements, List<String> targets) {
+        Set<String> needed = new HashSet<>(targets);
+        // Every name that was needed at some point; network edges into any of
+        // them belong to the slice even if they precede the definition.
+        Set<String> relevant = new HashSet<>(targets);
+        List<Stmt> slice = new ArrayList<>();
+
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            Stmt stmt = statements.get(i);
+            Dependencies dependencies = Dependencies.of(stmt);
+            // A call can write names that don't appear in it, so it is kept
+            // with everything it reads, the callee included.
+            boolean calls = dependencies.calls;
+            // Output statements are replaced by the target report below.
+            if (!calls && stmt instanceof Stmt.Expression && dependencies.writes.isEmpty()) continue;
+
+            if (calls || !Collections.disjoint(dependencies.writes, needed)) {
+                // A definite write is the reaching definition; earlier ones are dead.
+                if (dependencies.definite) needed.removeAll(dependencies.writes);
+                needed.addAll(dependencies.reads);
+                relevant.addAll(dependencies.reads);
+                slice.add(stmt);
+            } else if (!Collections.disjoint(dependencies.subjects, relevant)) {
+                needed.addAll(dependencies.reads);
+                relevant.addAll(dependencies.reads);
+                slice.add(stmt);
+            }
+        }
+
+        Collections.reverse(slice);
+        for (String target : targets) {
+            Token name = new Token(TokenType.IDENTIFIER, target, null, 0);
+            slice.add(new Stmt.Expression(new Expr.Variable(name)));
+        }
+        return slice;
+    }
+}
@@ -0,0 +1,260 @@
+package Lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The top-level state of an interpreter: its globals, which include the
+// declared rivers and rainfall, and its labels. Saved after a prelude, it
+// lets later runs start where the prelude finished without re-running it.
+//
+// Functions can't be written out as data. The snapshot keeps the source of
+// every script that declared a top-level function instead, and each global
+// holding a function records which declaration it was; restoring parses the
+// sources again and binds the same declarations. Functions declared inside
+// blocks close over scopes that no longer exist, so a state holding one
+// can't be saved.
+class Snapshot {
+    private static final int MAGIC = 0x52495653; // "RIVS"
+    private static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+    private static final byte BOOLEAN = 3;
+
+    // Where a function-valued global was declared: a source, and the name
+    // and line of a top-level declaration in it.
+    private static final class Declaration {
+        final int source;
+        final String name;
+        final int line;
+
+        Declaration(int source, String name, int line) {
+            this.source = source;
+            this.name = name;
+            this.line = line;
+        }
+
+        String key() {
+            return source + ":" + name + ":" + line;
+        }
+    }
+
+    final List<String> sources;
+    private final Map<String, Object> globals;
+    private final Map<String, String> labels;
+    private final Map<String, Declaration> functions;
+
+    private Snapshot(List<String> sources, Map<String, Object> globals, Map<String, String> labels,
+                     Map<String, Declaration> functions) {
+        this.sources = sources;
+        this.globals = globals;
+        this.labels = labels;
+        this.functions = functions;
+    }
+
+    // Origins map each top-level function declaration to its index in sources.
+    static Snapshot of(Interpreter interpreter, List<String> sources, Map<Stmt, Integer> origins) throws IOException {
+        Map<String, Object> globals = new LinkedHashMap<>();
+        Map<String, Declaration> functions = new LinkedHashMap<>();
+        for (String name : interpreter.globals.names()) {
+            Object value = interpreter.globals.getHere(name);
+            if (value instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) value;
+                Integer source = origins.get(function.declaration);
+                if (function.closure != interpreter.globals || source == null) {
+                    throw new IOException("Can't snapshot function '" + name + "' declared inside a block.");
+                }
+                Token declared = function.declaration.name;
+                functions.put(name, new Declaration(source, declared.lexeme, declared.line));
+            } else {
+                globals.put(name, value);
+            }
+        }
+        return new Snapshot(sources, globals, new LinkedHashMap<>(interpreter.labels), functions);
+    }
+
+    void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(globals.size());
+            for (Map.Entry<String, Object> entry : globals.entrySet()) {
+                writeString(out, entry.getKey());
+                Object value = entry.getValue();
+                if (value == null) {
+                    out.writeByte(NIL);
+                } else if (value instanceof Double) {
+                    out.writeByte(NUMBER);
+                    out.writeDouble((double) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean((boolean) value);
+                } else {
+                    out.writeByte(STRING);
+                    writeString(out, value.toString());
+                }
+            }
+
+            out.writeInt(functions.size());
+            for (Map.Entry<String, Declaration> entry : functions.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().source);
+                writeString(out, entry.getValue().name);
+                out.writeInt(entry.getValue().line);
+            }
+
+            out.writeInt(labels.size());
+            for (Map.Entry<String, String> entry : labels.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            out.writeInt(sources.size());
+            for (String source : sources) {
+                writeString(out, source);
+            }
+        }
+    }
+
+    static Snapshot read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a snapshot.");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version + ".");
+
+            Map<String, Object> globals = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = readString(in);
+                byte type = in.readByte();
+                switch (type) {
+                    case NIL: globals.put(name, null); break;
+                    case NUMBER: globals.put(name, in.readDouble()); break;
+                    case BOOLEAN: globals.put(name, in.readBoolean()); break;
+                    case STRING: globals.put(name, readString(in)); break;
+                    default: throw new IOException("Corrupt snapshot: unknown value type " + type + ".");
+                }
+            }
+
+            Map<String, Declaration> functions = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = readString(in);
+                functions.put(name, new Declaration(in.readInt(), readString(in), in.readInt()));
+            }
+
+            Map<String, String> labels = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                labels.put(readString(in), readString(in));
+            }
+
+            List<String> sources = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                sources.add(readString(in));
+            }
+            return new Snapshot(sources, globals, labels, functions);
+        } catch (NoSuchFileException e) {
+            throw new IOException("No snapshot at " + path + ".");
+        }
+    }
+
+    // Tells the checker what the restored globals hold, so a program run on
+    // them is checked against them. Restored functions are never checked,
+    // and their bodies can read and write any global, so nothing is proven
+    // about the names they use.
+    void assume(TypeChecker checker) throws IOException {
+        for (Map.Entry<String, Object> entry : globals.entrySet()) {
+            checker.assume(entry.getKey(), TypeChecker.Type.of(entry.getValue()));
+        }
+        for (String name : functions.keySet()) {
+            checker.assume(name, TypeChecker.Type.FUNCTION);
+        }
+        if (functions.isEmpty()) return;
+
+        for (Stmt.Function declaration : declarations(new HashMap<>()).values()) {
+            Dependencies dependencies = Dependencies.of(declaration);
+            for (String name : dependencies.reads) checker.assume(name, TypeChecker.Type.UNKNOWN);
+            for (String name : dependencies.writes) checker.assume(name, TypeChecker.Type.UNKNOWN);
+        }
+    }
+
+    // Loads the saved state into a fresh interpreter, recording where the
+    // re-parsed function declarations came from for a later snapshot.
+    void restore(Interpreter interpreter, Map<Stmt, Integer> origins) throws IOException {
+        for (Map.Entry<String, Object> entry : globals.entrySet()) {
+            interpreter.globals.define(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : labels.entrySet()) {
+            interpreter.label(entry.getKey(), entry.getValue());
+        }
+        if (functions.isEmpty()) return;
+
+        Map<String, Stmt.Function> declarations = declarations(origins);
+
+        // Globals that held the same function share one restored copy.
+        Map<String, LoxFunction> restored = new HashMap<>();
+        for (Map.Entry<String, Declaration> entry : functions.entrySet()) {
+            String key = entry.getValue().key();
+            Stmt.Function declaration = declarations.get(key);
+            if (declaration == null) throw new IOException("Corrupt snapshot: a saved function has no source.");
+            interpreter.define(entry.getKey(), restored.computeIfAbsent(key,
+                k -> new LoxFunction(declaration, interpreter.globals)));
+        }
+    }
+
+    // Parses the saved sources again, returning their top-level function
+    // declarations by key.
+    private Map<String, Stmt.Function> declarations(Map<Stmt, Integer> origins) throws IOException {
+        Map<String, Stmt.Function> declarations = new HashMap<>();
+        for (int i = 0; i < sources.size(); i++) {
+            Context context = new Context();
+            List<Stmt> statements = new Parser(new Scanner(sources.get(i), context).scanTokens(), context).parseStatements();
+            if (context.hadError) throw new IOException("Corrupt snapshot: saved source doesn't parse.");
+            for (Stmt stmt : statements) {
+                if (!(stmt instanceof Stmt.Function)) continue;
+                Token name = ((Stmt.Function) stmt).name;
+                declarations.put(new Declaration(i, name.lexeme, name.line).key(), (Stmt.Function) stmt);
+                origins.put(stmt, i);
+            }
+        }
+        return declarations;
+    }
+
+    // Records a script's top-level function declarations as coming from the
+    // next source, returning whether it had any.
+    static boolean declaresFunctions(List<Stmt> statements, int source, Map<Stmt, Integer> origins) {
+        boolean any = false;
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Function) {
+                origins.put(stmt, source);
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    // Length-prefixed UTF-8, since writeUTF stops at 64 KB and sources can be longer.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
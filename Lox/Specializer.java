@@ -0,0 +1,681 @@
+package Lox;
+
+import java.util.List;
+
+// Builds self-specializing node trees for expressions. Each node starts out
+// uninitialized and, on its first execution, replaces itself with a variant
+// specialised to the values it saw: DoubleAdd for two numbers, StringConcat
+// for text, and so on. When a later value breaks a node's assumption it
+// rewrites itself once more to a generic version that handles anything.
+//
+// Number-specialised nodes hand their results to their parents through
+// executeDouble, so chains of arithmetic never box intermediate values.
+class Specializer implements Expr.Visitor<Specializer.Node> {
+    // Thrown by executeDouble when a child produced something other than a
+    // number; carries the value so nothing is evaluated twice.
+    static final class UnexpectedResult extends Exception {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    abstract static class Node {
+        Node parent;
+
+        abstract Object execute();
+
+        double executeDouble() throws UnexpectedResult {
+            Object value = execute();
+            if (value instanceof Double) return (double) value;
+            throw new UnexpectedResult(value);
+        }
+
+        <T extends Node> T adopt(T child) {
+            child.parent = this;
+            return child;
+        }
+
+        // Swaps this node for another in its parent.
+        <T extends Node> T replace(T replacement) {
+            replacement.parent = parent;
+            parent.replaceChild(this, replacement);
+            return replacement;
+        }
+
+        void replaceChild(Node child, Node replacement) {
+            throw new IllegalStateException("Node has no children.");
+        }
+    }
+
+    private final Interpreter interpreter;
+
+    Specializer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Node root(Expr expr) {
+        return new Root(expr.accept(this));
+    }
+
+    private Node build(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Expressions
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) return new DoubleLiteral((double) expr.value);
+        return new Literal(expr.value);
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = build(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+                if (expr.numeric) return new DoubleNegate(expr, right);
+                return new UninitializedNegate(expr, right);
+            case BANG:
+                return new Not(right);
+        }
+        return new Generic(expr);
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary[] spine = expr.spine();
+        if (spine.length > Expr.Binary.MAX_NESTED_CHAIN) return chain(spine);
+
+        Node left = build(expr.left);
+        Node right = build(expr.right);
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return new GenericBinary(expr.operator, left, right);
+        }
+        // Operands the type checker proved numeric start out specialised.
+        if (expr.numeric) return doubleBinary(expr.operator, left, right);
+        return new UninitializedBinary(expr.operator, left, right);
+    }
+
+    // A long left-leaning chain becomes one generic node that loops over
+    // its operators, since specialised nodes would nest as deep as the
+    // formula is long and recurse that deep when executed.
+    private Node chain(Expr.Binary[] spine) {
+        int length = spine.length;
+        Token[] operators = new Token[length];
+        Node[] rights = new Node[length];
+        for (int i = 0; i < length; i++) {
+            operators[i] = spine[i].operator;
+            rights[i] = build(spine[i].right);
+        }
+        return new Chain(build(spine[0].left), operators, rights);
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot >= 0) return new FrameRead(expr.slot);
+        return new CachedVariableRead(expr.name);
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        return new Assign(expr, build(expr.value));
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        Node[] arguments = new Node[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        return new Call(expr, build(expr.callee), arguments);
+    }
+
+    @Override
+    public Node visitSharedExpr(Expr.Shared expr) {
+        return new Generic(expr);
+    }
+
+    @Override
+    public Node visitSumExpr(Expr.Sum expr) {
+        Node[] terms = new Node[expr.terms.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = build(expr.terms.get(i));
+        }
+        return new Sum(expr.operators, terms);
+    }
+
+    private BinaryNode doubleBinary(Token operator, Node left, Node right) {
+        switch (operator.type) {
+            case PLUS: return new DoubleAdd(operator, left, right);
+            case MINUS: return new DoubleSubtract(operator, left, right);
+            case STAR: return new DoubleMultiply(operator, left, right);
+            case SLASH: return new DoubleDivide(operator, left, right);
+        }
+        return new DoubleCompare(operator, left, right);
+    }
+
+    // Holds the top of a tree so the node below it can be replaced too.
+    private static final class Root extends Node {
+        private Node child;
+
+        Root(Node child) {
+            this.child = adopt(child);
+        }
+
+        @Override
+        Object execute() {
+            return child.execute();
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            this.child = replacement;
+        }
+    }
+
+    private static final class Literal extends Node {
+        private final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute() {
+            return value;
+        }
+    }
+
+    private static final class DoubleLiteral extends Node {
+        private final double value;
+
+        DoubleLiteral(double value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute() {
+            return value;
+        }
+
+        @Override
+        double executeDouble() {
+            return value;
+        }
+    }
+
+    // Anything without a specialised form goes back through the interpreter.
+    private final class Generic extends Node {
+        private final Expr expr;
+
+        Generic(Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        Object execute() {
+            return expr.accept(interpreter);
+        }
+    }
+
+    private final class FrameRead extends Node {
+        private final int slot;
+
+        FrameRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute() {
+            return interpreter.frame[slot];
+        }
+    }
+
+    // Remembers which scope held the name the last time it was read from a
+    // given scope. Scopes only ever gain names, so while none of the scopes
+    // in front of the holder has grown the answer still holds.
+    private final class CachedVariableRead extends Node {
+        private final Token name;
+        private Environment scope;
+        private Environment holder;
+        private int shadowing;
+
+        CachedVariableRead(Token name) {
+            this.name = name;
+        }
+
+        @Override
+        Object execute() {
+            Environment current = interpreter.scope();
+            if (current != scope) {
+                // A scope seen once, like a loop body's, may never come back;
+                // only resolve the holder when it does.
+                scope = current;
+                holder = null;
+                return interpreter.force(current.get(name));
+            }
+            if (holder == null || names(current) != shadowing) {
+                holder = current.resolve(name);
+                shadowing = names(current);
+            }
+            return interpreter.force(holder.getHere(name.lexeme));
+        }
+
+        private int names(Environment current) {
+            int count = 0;
+            for (Environment env = current; env != holder; env = env.enclosing) {
+                count += env.size();
+            }
+            return count;
+        }
+    }
+
+    private final class Assign extends Node {
+        private final Expr.Assign expr;
+        private Node value;
+
+        Assign(Expr.Assign expr, Node value) {
+            this.expr = expr;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute() {
+            Object result = value.execute();
+            if (expr.slot >= 0) {
+                interpreter.frame[expr.slot] = result;
+            } else {
+                interpreter.assign(expr.name, result);
+            }
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            value = replacement;
+        }
+    }
+
+    private final class Call extends Node {
+        private final Expr.Call expr;
+        private Node callee;
+        private final Node[] arguments;
+
+        Call(Expr.Call expr, Node callee, Node[] arguments) {
+            this.expr = expr;
+            this.callee = adopt(callee);
+            this.arguments = arguments;
+            for (Node argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        Object execute() {
+            LoxFunction function = interpreter.function(expr, callee.execute());
+            Object[] frame = new Object[function.declaration.frameSize];
+            for (int i = 0; i < arguments.length; i++) {
+                frame[i] = arguments[i].execute();
+            }
+            return interpreter.call(function, frame);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (callee == child) {
+                callee = replacement;
+                return;
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == child) arguments[i] = replacement;
+            }
+        }
+    }
+
+    private final class Chain extends Node {
+        private Node first;
+        private final Token[] operators;
+        private final Node[] rights;
+
+        Chain(Node first, Token[] operators, Node[] rights) {
+            this.first = adopt(first);
+            this.operators = operators;
+            this.rights = rights;
+            for (Node right : rights) {
+                adopt(right);
+            }
+        }
+
+        @Override
+        Object execute() {
+            Object value = first.execute();
+            for (int i = 0; i < rights.length; i++) {
+                value = interpreter.binary(operators[i], value, rights[i].execute());
+            }
+            return value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (first == child) {
+                first = replacement;
+                return;
+            }
+            for (int i = 0; i < rights.length; i++) {
+                if (rights[i] == child) rights[i] = replacement;
+            }
+        }
+    }
+
+    private final class Sum extends Node {
+        private final List<Token> operators;
+        private final Node[] terms;
+
+        Sum(List<Token> operators, Node[] terms) {
+            this.operators = operators;
+            this.terms = terms;
+            for (Node term : terms) {
+                adopt(term);
+            }
+        }
+
+        @Override
+        Object execute() {
+            return Summation.add(interpreter, operators, terms.length, i -> terms[i].execute());
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            for (int i = 0; i < terms.length; i++) {
+                if (terms[i] == child) terms[i] = replacement;
+            }
+        }
+    }
+
+    private final class Not extends Node {
+        private Node right;
+
+        Not(Node right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute() {
+            return !interpreter.isTruthy(right.execute());
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            right = replacement;
+        }
+    }
+
+    private abstract class NegateNode extends Node {
+        final Expr.Unary expr;
+        Node right;
+
+        NegateNode(Expr.Unary expr, Node right) {
+            this.expr = expr;
+            this.right = adopt(right);
+        }
+
+        Object negate(Object value) {
+            interpreter.checkNumberOperand(expr.operator, value);
+            return -(double) value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            right = replacement;
+        }
+    }
+
+    private final class UninitializedNegate extends NegateNode {
+        UninitializedNegate(Expr.Unary expr, Node right) {
+            super(expr, right);
+        }
+
+        @Override
+        Object execute() {
+            Object value = right.execute();
+            if (value instanceof Double) {
+                replace(new DoubleNegate(expr, right));
+            } else {
+                replace(new GenericNegate(expr, right));
+            }
+            return negate(value);
+        }
+    }
+
+    private final class DoubleNegate extends NegateNode {
+        DoubleNegate(Expr.Unary expr, Node right) {
+            super(expr, right);
+        }
+
+        @Override
+        Object execute() {
+            try {
+                return executeDouble();
+            } catch (UnexpectedResult e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        double executeDouble() throws UnexpectedResult {
+            try {
+                return -right.executeDouble();
+            } catch (UnexpectedResult e) {
+                replace(new GenericNegate(expr, right));
+                throw new UnexpectedResult(negate(e.value));
+            }
+        }
+    }
+
+    private final class GenericNegate extends NegateNode {
+        GenericNegate(Expr.Unary expr, Node right) {
+            super(expr, right);
+        }
+
+        @Override
+        Object execute() {
+            return negate(right.execute());
+        }
+    }
+
+    private abstract class BinaryNode extends Node {
+        final Token operator;
+        Node left;
+        Node right;
+
+        BinaryNode(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (left == child) {
+                left = replacement;
+            } else if (right == child) {
+                right = replacement;
+            }
+        }
+
+        // Gives up on specialisation and finishes with values already computed.
+        Object deoptimize(Object leftValue, Object rightValue) {
+            replace(new GenericBinary(operator, left, right));
+            return interpreter.binary(operator, leftValue, rightValue);
+        }
+    }
+
+    private final class UninitializedBinary extends BinaryNode {
+        UninitializedBinary(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute() {
+            Object leftValue = left.execute();
+            Object rightValue = right.execute();
+            if (leftValue instanceof Double && rightValue instanceof Double) {
+                replace(doubleBinary(operator, left, right));
+            } else if (operator.type == TokenType.PLUS && leftValue != null && rightValue != null) {
+                replace(new StringConcat(operator, left, right));
+            } else {
+                replace(new GenericBinary(operator, left, right));
+            }
+            return interpreter.binary(operator, leftValue, rightValue);
+        }
+    }
+
+    // Arithmetic on two numbers. Subclasses supply the operation.
+    private abstract class DoubleArithmetic extends BinaryNode {
+        DoubleArithmetic(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        abstract double apply(double left, double right);
+
+        @Override
+        Object execute() {
+            try {
+                return executeDouble();
+            } catch (UnexpectedResult e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        double executeDouble() throws UnexpectedResult {
+            double leftValue;
+            try {
+                leftValue = left.executeDouble();
+            } catch (UnexpectedResult e) {
+                throw unexpected(deoptimize(e.value, right.execute()));
+            }
+            double rightValue;
+            try {
+                rightValue = right.executeDouble();
+            } catch (UnexpectedResult e) {
+                throw unexpected(deoptimize(leftValue, e.value));
+            }
+            return apply(leftValue, rightValue);
+        }
+    }
+
+    private static UnexpectedResult unexpected(Object value) {
+        return new UnexpectedResult(value);
+    }
+
+    private final class DoubleAdd extends DoubleArithmetic {
+        DoubleAdd(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left + right;
+        }
+    }
+
+    private final class DoubleSubtract extends DoubleArithmetic {
+        DoubleSubtract(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left - right;
+        }
+    }
+
+    private final class DoubleMultiply extends DoubleArithmetic {
+        DoubleMultiply(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left * right;
+        }
+    }
+
+    private final class DoubleDivide extends DoubleArithmetic {
+        DoubleDivide(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double left, double right) {
+            return left / right;
+        }
+    }
+
+    private final class DoubleCompare extends BinaryNode {
+        DoubleCompare(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute() {
+            double leftValue;
+            try {
+                leftValue = left.executeDouble();
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.value, right.execute());
+            }
+            double rightValue;
+            try {
+                rightValue = right.executeDouble();
+            } catch (UnexpectedResult e) {
+                return deoptimize(leftValue, e.value);
+            }
+            switch (operator.type) {
+                case GREATER: return leftValue > rightValue;
+                case GREATER_EQUAL: return leftValue >= rightValue;
+                case LESS: return leftValue < rightValue;
+                default: return leftValue <= rightValue;
+            }
+        }
+    }
+
+    private final class StringConcat extends BinaryNode {
+        StringConcat(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute() {
+            Object leftValue = left.execute();
+            Object rightValue = right.execute();
+            if (leftValue == null || rightValue == null
+                    || (leftValue instanceof Double && rightValue instanceof Double)) {
+                return deoptimize(leftValue, rightValue);
+            }
+            return leftValue.toString() + rightValue.toString();
+        }
+    }
+
+    private final class GenericBinary extends BinaryNode {
+        GenericBinary(Token operator, Node left, Node right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute() {
+            return interpreter.binary(operator, left.execute(), right.execute());
+        }
+    }
+}
@@ -2,18 +2,25 @@ package Lox;
 
 import java.util.List;
 
+import Lox.Stmt.Block;
 import Lox.Stmt.Dam;
+import Lox.Stmt.Function;
 import Lox.Stmt.RainfallDeclaration;
 import Lox.Stmt.RiverCombination;
 import Lox.Stmt.RiverCombinationExpr;
 import Lox.Stmt.RiverDeclaration;
 import Lox.Stmt.RiverDeclarationWithFlow;
+import Lox.Stmt.Return;
 import Lox.Stmt.RiverFlow;
 import Lox.Stmt.Var;
+import Lox.Stmt.While;
 
 abstract class Stmt {
     interface Visitor<R> {
+        R visitBlockStmt(Block stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitFunctionStmt(Function stmt);
+        R visitReturnStmt(Return stmt);
         R visitRiverDeclarationStmt(RiverDeclaration stmt);
         R visitRiverFlowStmt(RiverFlow stmt);
         R visitRiverCombinationStmt(RiverCombination stmt);
@@ -23,6 +30,20 @@ abstract class Stmt {
         R visitVarStmt(Var stmt);
         R visitDamStmt(Dam stmt);
         R visitLabelStmt(Label stmt);
+        R visitWhileStmt(While stmt);
+    }
+
+    static class Block extends Stmt {
+        final List<Stmt> statements;
+
+        Block(List<Stmt> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBlockStmt(this);
+        }
     }
 
     static class Expression extends Stmt {
@@ -38,6 +59,40 @@ abstract class Stmt {
         }
     }
 
+    static class Function extends Stmt {
+        final Token name;
+        final List<Token> params;
+        final List<Stmt> body;
+        final int frameSize; // parameters plus every local declared in the body
+
+        Function(Token name, List<Token> params, List<Stmt> body, int frameSize) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+            this.frameSize = frameSize;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStmt(this);
+        }
+    }
+
+    static class Return extends Stmt {
+        final Token keyword;
+        final Expr value;
+
+        Return(Token keyword, Expr value) {
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnStmt(this);
+        }
+    }
+
     static class RiverCombinationExpr extends Stmt {
         final Token name;
         final Expr expression;
@@ -131,6 +186,8 @@ abstract class Stmt {
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
+        int slot = -1; // frame slot of a function local, or -1
+        Expr.Variable[] reads = null; // what a lazy declaration binds; see Thunk
 
         Var(Token name, Expr initializer) {
             this.name = name;
@@ -146,6 +203,8 @@ abstract class Stmt {
     static class Dam extends Stmt {
         final Token name;
         final Expr algorithm;
+        int slot = -1; // frame slot of a function local, or -1
+        Expr.Variable[] reads = null; // what a lazy declaration binds; see Thunk
 
         Dam(Token name, Expr algorithm) {
             this.name = name;
@@ -173,5 +232,20 @@ abstract class Stmt {
         }
     }
 
+    static class While extends Stmt {
+        final Expr condition;
+        final Stmt body;
+
+        While(Expr condition, Stmt body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitWhileStmt(this);
+        }
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
 }
\ No newline at end of file
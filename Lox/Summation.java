@@ -0,0 +1,98 @@
+package Lox;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+// Adds up the terms of an Expr.Sum. Numbers are summed with Neumaier's
+// compensated summation, which carries the low-order bits each addition
+// drops, so a confluence of thousands of inflows doesn't drift.
+//
+// The terms are split into halves, down to leaves of LEAF terms, at points
+// that depend only on their count. Wide sums reduce the halves on the
+// fork-join pool, narrow ones on the calling thread; either way the same
+// partial sums meet in the same order, so the result doesn't depend on the
+// number of threads.
+class Summation {
+    private static final int LEAF = 1024;
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    // Evaluates the terms in order and adds them. From the first term that
+    // isn't a number on, the rest fold through '+' as a chain of binary
+    // additions would, concatenating or reporting the same error.
+    static Object add(Interpreter interpreter, List<Token> operators, int count, IntFunction<Object> terms) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            Object term = terms.apply(i);
+            if (!(term instanceof Double)) {
+                Object value = i == 0 ? term : interpreter.binary(operators.get(i - 1), sum(values, 0, i), term);
+                for (int j = i + 1; j < count; j++) {
+                    value = interpreter.binary(operators.get(j - 1), value, terms.apply(j));
+                }
+                return value;
+            }
+            values[i] = (double) term;
+        }
+        return sum(values, 0, count);
+    }
+
+    static double sum(double[] values, int from, int to) {
+        if (to - from == 1) return values[from];
+        double[] partial = to - from < PARALLEL_THRESHOLD
+            ? partial(values, from, to)
+            : ForkJoinPool.commonPool().invoke(new Reduction(values, from, to));
+        // An infinite or NaN sum leaves a NaN compensation behind.
+        if (partial[1] == 0 || !Double.isFinite(partial[0])) return partial[0];
+        return partial[0] + partial[1];
+    }
+
+    // The sum of a range and the error it accumulated, as { sum, compensation }.
+    private static double[] partial(double[] values, int from, int to) {
+        if (to - from > LEAF) {
+            int middle = (from + to) >>> 1;
+            return combine(partial(values, from, middle), partial(values, middle, to));
+        }
+        double sum = values[from];
+        double compensation = 0;
+        for (int i = from + 1; i < to; i++) {
+            double value = values[i];
+            double total = sum + value;
+            compensation += error(sum, value, total);
+            sum = total;
+        }
+        return new double[] { sum, compensation };
+    }
+
+    private static double[] combine(double[] left, double[] right) {
+        double total = left[0] + right[0];
+        return new double[] { total, left[1] + right[1] + error(left[0], right[0], total) };
+    }
+
+    // What rounding lost when a + b came out as total.
+    private static double error(double a, double b, double total) {
+        return Math.abs(a) >= Math.abs(b) ? (a - total) + b : (b - total) + a;
+    }
+
+    private static final class Reduction extends RecursiveTask<double[]> {
+        private final double[] values;
+        private final int from;
+        private final int to;
+
+        Reduction(double[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from < PARALLEL_THRESHOLD) return partial(values, from, to);
+            int middle = (from + to) >>> 1;
+            Reduction left = new Reduction(values, from, middle);
+            left.fork();
+            double[] right = new Reduction(values, middle, to).compute();
+            return combine(left.join(), right);
+        }
+    }
+}
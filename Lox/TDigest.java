@@ -0,0 +1,148 @@
+package Lox;
+
+import java.util.Arrays;
+
+// Streaming quantile sketch (Dunning's merging t-digest). Values are
+// buffered and periodically merged into a bounded set of weighted
+// centroids; centroids near the tails are kept small so extreme
+// percentiles stay accurate. Two digests merge by feeding one's centroids
+// into the other.
+class TDigest {
+    private final double compression;
+    private double[] means = new double[0];
+    private double[] weights = new double[0];
+    private int size = 0;
+    private final double[] bufferMeans;
+    private final double[] bufferWeights;
+    private int buffered = 0;
+    private double totalWeight = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(double compression) {
+        this.compression = compression;
+        bufferMeans = new double[(int) (5 * compression)];
+        bufferWeights = new double[bufferMeans.length];
+    }
+
+    void add(double value) {
+        add(value, 1);
+    }
+
+    private void add(double value, double weight) {
+        if (buffered == bufferMeans.length) compress();
+        bufferMeans[buffered] = value;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.size; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    double quantile(double q) {
+        compress();
+        if (size == 0) return Double.NaN;
+        if (size == 1) return means[0];
+
+        double index = q * totalWeight;
+        // Each centroid's mass is centred on its mean; interpolate between
+        // neighbouring centres, and towards min and max at the ends.
+        double cumulative = weights[0] / 2;
+        if (index < cumulative) {
+            return min + (means[0] - min) * (index / cumulative);
+        }
+        for (int i = 1; i < size; i++) {
+            double next = cumulative + (weights[i - 1] + weights[i]) / 2;
+            if (index < next) {
+                double fraction = (index - cumulative) / (next - cumulative);
+                return means[i - 1] + (means[i] - means[i - 1]) * fraction;
+            }
+            cumulative = next;
+        }
+        double tail = totalWeight - cumulative;
+        return means[size - 1] + (max - means[size - 1]) * Math.min(1, (index - cumulative) / tail);
+    }
+
+    private void compress() {
+        if (buffered == 0) return;
+
+        int count = size + buffered;
+        double[] allMeans = Arrays.copyOf(means, count);
+        double[] allWeights = Arrays.copyOf(weights, count);
+        System.arraycopy(bufferMeans, 0, allMeans, size, buffered);
+        System.arraycopy(bufferWeights, 0, allWeights, size, buffered);
+        sort(allMeans, allWeights, 0, count - 1);
+        buffered = 0;
+
+        double[] mergedMeans = new double[count];
+        double[] mergedWeights = new double[count];
+        int merged = 0;
+        double before = 0;
+        double mean = allMeans[0];
+        double weight = allWeights[0];
+        for (int i = 1; i < count; i++) {
+            double proposed = weight + allWeights[i];
+            double q0 = before / totalWeight;
+            double q2 = (before + proposed) / totalWeight;
+            double limit = totalWeight * 4 * Math.min(q0 * (1 - q0), q2 * (1 - q2)) / compression;
+            if (proposed <= limit) {
+                mean += (allMeans[i] - mean) * allWeights[i] / proposed;
+                weight = proposed;
+            } else {
+                mergedMeans[merged] = mean;
+                mergedWeights[merged] = weight;
+                merged++;
+                before += weight;
+                mean = allMeans[i];
+                weight = allWeights[i];
+            }
+        }
+        mergedMeans[merged] = mean;
+        mergedWeights[merged] = weight;
+        merged++;
+
+        means = Arrays.copyOf(mergedMeans, merged);
+        weights = Arrays.copyOf(mergedWeights, merged);
+        size = merged;
+    }
+
+    // Quicksorts centroids by mean, carrying their weights along.
+    private static void sort(double[] keys, double[] values, int low, int high) {
+        while (low < high) {
+            double pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    double key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    double value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller side so the stack stays shallow.
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+    }
+}
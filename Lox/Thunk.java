@@ -0,0 +1,154 @@
+package Lox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The value of a var or dam declaration, worked out the first time it is
+// read and then kept. The values of the variables its initializer reads
+// are taken when it is declared, and it is evaluated in a scope of just
+// those, so writes to them afterwards don't change what it evaluates to.
+// Values that are never read are never computed.
+//
+// Only initializers that can't fail once their variables are found are
+// deferred: every operator must be one the type checker proved has number
+// operands, and nothing may call or assign. The reads are looked up in the
+// order evaluation would, so a missing one is reported just as an eager run
+// would report it. Everything else is evaluated where it appears, so
+// output and errors come out in the same order as without deferring.
+class Thunk {
+    // Forcing a thunk first forces the unforced ones it captured, so a chain
+    // of declarations that each read the one before would recurse as deep as
+    // it is long. A declaration that would be deeper than this runs at once.
+    static final int MAX_DEPTH = 64;
+
+    final Expr initializer;
+    final boolean memoize;
+    // Longest chain of unforced thunks this one forces, itself included.
+    final int depth;
+    private final Expr.Variable[] reads;
+    // Values of the reads when declared; null once the value is known.
+    private Object[] values;
+    private Object value = null;
+
+    Thunk(Expr initializer, boolean memoize, int depth, Expr.Variable[] reads, Object[] values) {
+        this.initializer = initializer;
+        this.memoize = memoize;
+        this.depth = depth;
+        this.reads = reads;
+        this.values = values;
+    }
+
+    boolean forced() {
+        return values == null;
+    }
+
+    Object value() {
+        return value;
+    }
+
+    // The scope the initializer is evaluated in.
+    Environment scope() {
+        Environment scope = new Environment();
+        for (int i = 0; i < reads.length; i++) {
+            scope.define(reads[i].name.lexeme, values[i]);
+        }
+        return scope;
+    }
+
+    void force(Object value) {
+        this.value = value;
+        values = null;
+    }
+
+    // Marks initializers that are evaluated where they appear.
+    static final Expr.Variable[] EAGER = new Expr.Variable[0];
+
+    // The variables an initializer reads, each name once in the order they
+    // are first evaluated, or EAGER. A long formula often reads the same few
+    // names many times, so binding them costs far less than evaluating it.
+    // Literals and lone variables cost no more to evaluate than to defer.
+    static Expr.Variable[] reads(Expr initializer) {
+        if (initializer instanceof Expr.Literal || initializer instanceof Expr.Variable) return EAGER;
+        Reads reads = new Reads();
+        initializer.accept(reads);
+        if (reads.eager) return EAGER;
+        return reads.variables.values().toArray(new Expr.Variable[0]);
+    }
+
+    private static final class Reads implements Expr.Visitor<Void> {
+        final Map<String, Expr.Variable> variables = new LinkedHashMap<>();
+        boolean eager = false;
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            eager = true;
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // Walks the left spine in the order the operands are evaluated.
+            Expr.Binary[] spine = expr.spine();
+            spine[0].left.accept(this);
+            for (Expr.Binary binary : spine) {
+                if (!safe(binary)) eager = true;
+                binary.right.accept(this);
+            }
+            return null;
+        }
+
+        // Equality never fails; other operators only when the checker proved
+        // their operands are numbers.
+        private static boolean safe(Expr.Binary expr) {
+            TokenType type = expr.operator.type;
+            return expr.numeric || type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            eager = true;
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            if (expr.operator.type == TokenType.MINUS && !expr.numeric) eager = true;
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            // Frame slots belong to a function call, which never defers.
+            if (expr.slot >= 0) {
+                eager = true;
+            } else {
+                variables.putIfAbsent(expr.name.lexeme, expr);
+            }
+            return null;
+        }
+
+        // Shared values are cached for the current state, not the declaration's.
+        @Override
+        public Void visitSharedExpr(Expr.Shared expr) {
+            eager = true;
+            return null;
+        }
+
+        // Sums carry no proof that their terms are numbers.
+        @Override
+        public Void visitSumExpr(Expr.Sum expr) {
+            eager = true;
+            return null;
+        }
+    }
+}
@@ -4,16 +4,27 @@ public class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
+    // The value of a NUMBER token, kept unboxed; its literal is null.
+    final double number;
     final int line;
     
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
+        this.number = 0;
+        this.line = line;
+    }
+
+    Token(TokenType type, String lexeme, double number, int line) {
+        this.type = type;
+        this.lexeme = lexeme;
+        this.literal = null;
+        this.number = number;
         this.line = line;
     }
     
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme + " " + (type == TokenType.NUMBER ? number : literal);
     }
 }
\ No newline at end of file
@@ -26,6 +26,9 @@ enum TokenType {
     RAINFALL, OUTPUT, SYSTEM, WITH,
     RIVER, DAM, LABEL,
 
+    // Modules
+    IMPORT,
+
     // End of file.
     EOF
 }
\ No newline at end of file
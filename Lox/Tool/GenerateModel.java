@@ -0,0 +1,161 @@
+package Lox.Tool;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Writes synthetic river networks for load testing. Each day declares its
+// rainfall and root rivers, then joins them level by level: every node
+// combines up to fan-in rivers from the level below, which flow into it,
+// until one river is left or the depth runs out. A dam with a formula of
+// the given number of terms then releases from the top level, its own
+// release the day before and the rainfall, and its release is printed.
+public class GenerateModel {
+    public static final class Shape {
+        public int roots = 64;
+        public int depth = 8;
+        public int fanIn = 4;
+        public int days = 10;
+        public int terms = 6;
+        public long seed = 1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Shape shape = new Shape();
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                if (i + 1 == args.length) usage();
+                long value = Long.parseLong(args[i + 1]);
+                switch (args[i]) {
+                    case "--roots": shape.roots = (int) value; break;
+                    case "--depth": shape.depth = (int) value; break;
+                    case "--fan-in": shape.fanIn = (int) value; break;
+                    case "--days": shape.days = (int) value; break;
+                    case "--terms": shape.terms = (int) value; break;
+                    case "--seed": shape.seed = value; break;
+                    default: usage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (i != args.length - 1 || shape.roots < 1 || shape.depth < 1 || shape.fanIn < 2 || shape.days < 1
+                || shape.terms < 1) {
+            usage();
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(args[i]), StandardCharsets.UTF_8)) {
+            generate(shape, writer);
+        }
+        System.out.println(statements(shape) + " statements written to " + args[i]);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: generate_model [--roots n] [--depth n] [--fan-in n] [--days n] [--terms n] [--seed n] <output.riv>");
+        System.exit(64);
+    }
+
+    // The number of top-level statements generate() writes for a shape.
+    public static long statements(Shape shape) {
+        List<Integer> levels = levels(shape);
+        long nodes = 0;
+        for (int width : levels) nodes += width;
+        // Every river below the top level flows into one node above it.
+        long flows = levels.isEmpty() ? 0 : shape.roots + nodes - levels.get(levels.size() - 1);
+        // Rainfall, the roots, a combine and a sum per node, the flows, the dam and its output.
+        long perDay = 1 + shape.roots + 2 * nodes + flows + 2;
+        return 1 + shape.days * perDay;
+    }
+
+    public static void generate(Shape shape, Appendable out) {
+        try {
+            write(shape, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(Shape shape, Appendable out) throws IOException {
+        SplittableRandom random = new SplittableRandom(shape.seed);
+        List<Integer> levels = levels(shape);
+        out.append("// roots ").append(String.valueOf(shape.roots)).append(", depth ").append(String.valueOf(shape.depth))
+            .append(", fan-in ").append(String.valueOf(shape.fanIn)).append(", days ").append(String.valueOf(shape.days))
+            .append(", terms ").append(String.valueOf(shape.terms)).append(", seed ").append(String.valueOf(shape.seed))
+            .append('\n');
+        out.append("var release_d0 = 0;\n");
+
+        for (int day = 1; day <= shape.days; day++) {
+            String suffix = "_d" + day;
+            out.append("\n// Day ").append(String.valueOf(day)).append('\n');
+            out.append("rainfall = ").append(number(random.nextDouble(0, 40))).append(";\n");
+
+            List<String> below = new ArrayList<>();
+            for (int r = 0; r < shape.roots; r++) {
+                String name = "root" + r + suffix;
+                out.append("river ").append(name).append(" = root with ").append(number(random.nextDouble(1, 50)))
+                    .append(";\n");
+                below.add(name);
+            }
+
+            for (int level = 1; level <= levels.size(); level++) {
+                List<String> above = new ArrayList<>();
+                for (int node = 0; node < levels.get(level - 1); node++) {
+                    String name = "n" + level + "_" + node + suffix;
+                    List<String> sources = below.subList(node * shape.fanIn,
+                        Math.min(below.size(), (node + 1) * shape.fanIn));
+                    out.append("river ").append(name).append(" combine ").append(String.join(", ", sources))
+                        .append(";\n");
+                    // A lone source would read as a river type, so it gets '+ 0'.
+                    out.append("river ").append(name).append(" = ").append(String.join(" + ", sources))
+                        .append(sources.size() == 1 ? " + 0;\n" : ";\n");
+                    for (String source : sources) {
+                        out.append("river ").append(source).append(" flows ").append(name).append(";\n");
+                    }
+                    above.add(name);
+                }
+                below = above;
+            }
+
+            String release = "release" + suffix;
+            out.append("dam ").append(release).append(" = ");
+            for (int t = 0; t < shape.terms; t++) {
+                if (t > 0) out.append(random.nextInt(4) == 0 ? " - " : " + ");
+                switch (t % 3) {
+                    case 0:
+                        out.append(below.get(random.nextInt(below.size())));
+                        break;
+                    case 1:
+                        out.append("rainfall");
+                        break;
+                    default:
+                        out.append("release_d").append(String.valueOf(day - 1));
+                }
+                out.append(" * ").append(number(random.nextDouble(0.01, 1)));
+            }
+            out.append(";\n");
+            out.append(release).append(";\n");
+        }
+    }
+
+    // The width of each level above the roots.
+    private static List<Integer> levels(Shape shape) {
+        List<Integer> levels = new ArrayList<>();
+        int width = shape.roots;
+        while (width > 1 && levels.size() < shape.depth) {
+            width = (width + shape.fanIn - 1) / shape.fanIn;
+            levels.add(width);
+        }
+        return levels;
+    }
+
+    private static String number(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+}
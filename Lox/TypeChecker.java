@@ -0,0 +1,394 @@
+package Lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Infers which variables and expressions are always numbers, strings or
+// booleans before a program runs. Operations on values proven to have the
+// wrong type are reported as errors, and arithmetic whose operands are
+// proven numeric is marked so the interpreter can skip its runtime checks.
+//
+// Inference is flow-insensitive: a name's type is the join of everything
+// ever assigned to it, iterated until no type changes.
+class TypeChecker implements Expr.Visitor<TypeChecker.Type>, Stmt.Visitor<Void> {
+    enum Type {
+        NONE, NUMBER, STRING, BOOLEAN, NIL, FUNCTION, UNKNOWN;
+
+        Type join(Type other) {
+            if (this == NONE) return other;
+            if (other == NONE || other == this) return this;
+            return UNKNOWN;
+        }
+
+        boolean isKnown() {
+            return this != NONE && this != UNKNOWN;
+        }
+
+        static Type of(Object value) {
+            if (value instanceof Double) return NUMBER;
+            if (value instanceof String) return STRING;
+            if (value instanceof Boolean) return BOOLEAN;
+            if (value instanceof LoxFunction) return FUNCTION;
+            return value == null ? NIL : UNKNOWN;
+        }
+    }
+
+    private final Context context;
+    private final Map<String, Type> globals = new HashMap<>();
+    private final Map<String, List<Stmt.Function>> functions = new HashMap<>();
+    private final Map<Stmt.Function, Type[]> locals = new HashMap<>();
+    private final Map<Stmt.Function, Type> returns = new HashMap<>();
+    private Stmt.Function current = null;
+    // The callee of the call being checked; reading its name calls the
+    // function rather than letting its value escape.
+    private Expr callee = null;
+    private boolean changed;
+    private boolean reporting = false;
+
+    TypeChecker(Context context) {
+        this.context = context;
+    }
+
+    // A global that holds a value of this type before the program starts,
+    // such as one restored from a snapshot.
+    void assume(String name, Type type) {
+        globals.merge(name, type, Type::join);
+    }
+
+    void check(List<Stmt> statements) {
+        do {
+            changed = false;
+            checkAll(statements);
+        } while (changed);
+
+        // Types are stable now; one more pass reports errors and marks nodes.
+        reporting = true;
+        checkAll(statements);
+    }
+
+    private void checkAll(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            stmt.accept(this);
+        }
+    }
+
+    private Type type(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void assign(String name, int slot, Type type) {
+        if (slot >= 0 && current != null) {
+            Type[] slots = locals.get(current);
+            Type joined = slots[slot].join(type);
+            if (joined != slots[slot]) {
+                slots[slot] = joined;
+                changed = true;
+            }
+            return;
+        }
+
+        Type previous = globals.getOrDefault(name, Type.NONE);
+        Type joined = previous.join(type);
+        if (joined != previous) {
+            globals.put(name, joined);
+            changed = true;
+        }
+    }
+
+    // NONE means nothing is known to reach this name yet; it never proves
+    // anything, so names that are never assigned stay unchecked.
+    private Type read(String name, int slot) {
+        if (slot >= 0 && current != null) return locals.get(current)[slot];
+        return globals.getOrDefault(name, Type.NONE);
+    }
+
+    private void error(Token token, String message) {
+        if (reporting) context.error(token, message);
+    }
+
+    private void checkNumber(Token operator, Type operand, String message) {
+        if (operand.isKnown() && operand != Type.NUMBER) error(operator, message);
+    }
+
+    // Expressions
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Type type = type(expr.value);
+        assign(expr.name.lexeme, expr.slot, type);
+        return type;
+    }
+
+    // Long formulas are left-leaning chains, so the left spine is walked
+    // in a loop rather than by recursing once per operator.
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary[] spine = expr.spine();
+        Type type = type(spine[0].left);
+        for (Expr.Binary binary : spine) {
+            type = binary(binary, type, type(binary.right));
+        }
+        return type;
+    }
+
+    private Type binary(Expr.Binary expr, Type left, Type right) {
+        boolean numeric = left == Type.NUMBER && right == Type.NUMBER;
+
+        switch (expr.operator.type) {
+            case PLUS:
+                if (reporting) expr.numeric = numeric;
+                return plus(expr.operator, left, right);
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                checkNumber(expr.operator, left, "Operands must be numbers.");
+                checkNumber(expr.operator, right, "Operands must be numbers.");
+                if (reporting) expr.numeric = numeric;
+                return expr.operator.type == TokenType.MINUS || expr.operator.type == TokenType.STAR
+                    || expr.operator.type == TokenType.SLASH ? Type.NUMBER : Type.BOOLEAN;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return Type.BOOLEAN;
+        }
+        return Type.NIL;
+    }
+
+    private Type plus(Token operator, Type left, Type right) {
+        if (left == Type.NIL || right == Type.NIL) {
+            error(operator, "Operands must not be nil.");
+        }
+        if (left == Type.NUMBER && right == Type.NUMBER) return Type.NUMBER;
+        if (left == Type.NONE || right == Type.NONE) return Type.NONE;
+        // Any other known operand makes '+' a concatenation.
+        if ((left.isKnown() && left != Type.NUMBER) || (right.isKnown() && right != Type.NUMBER)) {
+            return Type.STRING;
+        }
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSumExpr(Expr.Sum expr) {
+        Type type = type(expr.terms.get(0));
+        for (int i = 1; i < expr.terms.size(); i++) {
+            type = plus(expr.operators.get(i - 1), type, type(expr.terms.get(i)));
+        }
+        return type;
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        this.callee = expr.callee;
+        Type callee = type(expr.callee);
+        List<Type> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(type(argument));
+        }
+
+        if (callee.isKnown() && callee != Type.FUNCTION) {
+            error(expr.paren, "Can only call functions.");
+            return Type.UNKNOWN;
+        }
+        // Function values only come from reading a name, which lets them
+        // escape, so calls through other expressions need nothing more.
+        if (!(expr.callee instanceof Expr.Variable)) return Type.UNKNOWN;
+
+        Expr.Variable name = (Expr.Variable) expr.callee;
+        List<Stmt.Function> candidates = functions.get(name.name.lexeme);
+        if (callee != Type.FUNCTION || name.slot >= 0 || candidates == null) {
+            // The callee may not be the function declared under this name.
+            escape(name.name.lexeme);
+            return Type.UNKNOWN;
+        }
+
+        Type result = Type.NONE;
+        boolean arityMatched = false;
+        for (Stmt.Function function : candidates) {
+            if (function.params.size() != arguments.size()) continue;
+            arityMatched = true;
+            Type[] slots = locals.get(function);
+            for (int i = 0; i < arguments.size(); i++) {
+                Type joined = slots[i].join(arguments.get(i));
+                if (joined != slots[i]) {
+                    slots[i] = joined;
+                    changed = true;
+                }
+            }
+            result = result.join(returns.getOrDefault(function, Type.NONE));
+        }
+        if (!arityMatched) {
+            error(expr.paren, "Expected " + candidates.get(0).params.size() +
+                " arguments but got " + arguments.size() + ".");
+        }
+        return result;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return type(expr.expression);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        return Type.of(expr.value);
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        Type right = type(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+                checkNumber(expr.operator, right, "Operand must be a number.");
+                if (reporting) expr.numeric = right == Type.NUMBER;
+                return Type.NUMBER;
+            case BANG:
+                return Type.BOOLEAN;
+        }
+        return Type.NIL;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        if (expr != callee) escape(expr.name.lexeme);
+        return read(expr.name.lexeme, expr.slot);
+    }
+
+    // A function whose value is read, or that is called through a name that
+    // may hold something else, can be called from anywhere with anything, so
+    // nothing is known about its parameters.
+    private void escape(String name) {
+        List<Stmt.Function> candidates = functions.get(name);
+        if (candidates == null) return;
+        for (Stmt.Function function : candidates) {
+            Type[] slots = locals.get(function);
+            for (int i = 0; i < function.params.size(); i++) {
+                if (slots[i] != Type.UNKNOWN) {
+                    slots[i] = Type.UNKNOWN;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Type visitSharedExpr(Expr.Shared expr) {
+        return type(expr.expression);
+    }
+
+    // Statements
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        checkAll(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        type(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (!locals.containsKey(stmt)) {
+            Type[] slots = new Type[stmt.frameSize];
+            java.util.Arrays.fill(slots, Type.NONE);
+            locals.put(stmt, slots);
+            functions.computeIfAbsent(stmt.name.lexeme, k -> new ArrayList<>()).add(stmt);
+            changed = true;
+        }
+        assign(stmt.name.lexeme, -1, Type.FUNCTION);
+
+        Stmt.Function enclosing = current;
+        current = stmt;
+        checkAll(stmt.body);
+        // A body that can fall off its end also returns nil.
+        if (stmt.body.isEmpty() || !(stmt.body.get(stmt.body.size() - 1) instanceof Stmt.Return)) {
+            returnType(Type.NIL);
+        }
+        current = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        returnType(stmt.value == null ? Type.NIL : type(stmt.value));
+        return null;
+    }
+
+    private void returnType(Type type) {
+        if (current == null) return;
+        Type previous = returns.getOrDefault(current, Type.NONE);
+        Type joined = previous.join(type);
+        if (joined != previous) {
+            returns.put(current, joined);
+            changed = true;
+        }
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        type(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationStmt(Stmt.RiverDeclaration stmt) {
+        assign(stmt.name.lexeme, -1, Type.STRING);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverFlowStmt(Stmt.RiverFlow stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationStmt(Stmt.RiverCombination stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitRainfallDeclarationStmt(Stmt.RainfallDeclaration stmt) {
+        assign("rainfall", -1, Type.NUMBER);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverDeclarationWithFlowStmt(Stmt.RiverDeclarationWithFlow stmt) {
+        assign(stmt.name.lexeme, -1, Type.NUMBER);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverCombinationExprStmt(Stmt.RiverCombinationExpr stmt) {
+        assign(stmt.name.lexeme, -1, type(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Type type = stmt.initializer == null ? Type.NIL : type(stmt.initializer);
+        assign(stmt.name.lexeme, stmt.slot, type);
+        // Whether it can be deferred depends on the marks just made.
+        if (reporting) stmt.reads = null;
+        return null;
+    }
+
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+        assign(stmt.name.lexeme, stmt.slot, type(stmt.algorithm));
+        if (reporting) stmt.reads = null;
+        return null;
+    }
+
+    @Override
+    public Void visitLabelStmt(Stmt.Label stmt) {
+        return null;
+    }
+}
@@ -0,0 +1,246 @@
+package Lox;
+
+import java.util.Arrays;
+
+// Executes a Chunk with a single dispatch loop. Numbers live unboxed in
+// parallel double[] arrays; the matching Object[] entry is null for a
+// number and holds the value itself otherwise.
+class VM {
+    static final Object NIL = new Object();
+    private static final Object UNDEFINED = new Object();
+
+    private final Interpreter interpreter;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void run(Chunk chunk) {
+        final int[] code = chunk.code;
+        final double[] numbers = chunk.numbers;
+        final Object[] refs = chunk.refs;
+
+        double[] slotNumbers = new double[chunk.slotNames.length];
+        Object[] slotRefs = new Object[chunk.slotNames.length];
+        Arrays.fill(slotRefs, UNDEFINED);
+
+        double[] stack = new double[chunk.maxStack];
+        Object[] stackRefs = new Object[chunk.maxStack];
+        int sp = 0;
+        int ip = 0;
+
+        while (ip < code.length) {
+            switch (code[ip++]) {
+                case Chunk.CONSTANT:
+                    stack[sp] = numbers[code[ip++]];
+                    stackRefs[sp++] = null;
+                    break;
+                case Chunk.REF:
+                    stackRefs[sp++] = refs[code[ip++]];
+                    break;
+                case Chunk.LOAD: {
+                    int slot = code[ip++];
+                    int token = code[ip++];
+                    Object ref = slotRefs[slot];
+                    if (ref == UNDEFINED) {
+                        Token name = (Token) refs[token];
+                        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+                    }
+                    stack[sp] = slotNumbers[slot];
+                    stackRefs[sp++] = ref;
+                    break;
+                }
+                case Chunk.STORE: {
+                    int slot = code[ip++];
+                    sp--;
+                    slotNumbers[slot] = stack[sp];
+                    slotRefs[slot] = stackRefs[sp];
+                    break;
+                }
+                case Chunk.ASSIGN: {
+                    int slot = code[ip++];
+                    int token = code[ip++];
+                    if (slotRefs[slot] == UNDEFINED) {
+                        Token name = (Token) refs[token];
+                        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+                    }
+                    slotNumbers[slot] = stack[sp - 1];
+                    slotRefs[slot] = stackRefs[sp - 1];
+                    break;
+                }
+                case Chunk.POP:
+                    sp--;
+                    break;
+                case Chunk.JUMP:
+                    ip = code[ip];
+                    break;
+                case Chunk.JUMP_IF_FALSE: {
+                    int target = code[ip++];
+                    sp--;
+                    Object ref = stackRefs[sp];
+                    if (ref != null && !interpreter.isTruthy(box(stack[sp], ref))) ip = target;
+                    break;
+                }
+
+                case Chunk.ADD: {
+                    int token = code[ip++];
+                    sp--;
+                    if (stackRefs[sp - 1] == null && stackRefs[sp] == null) {
+                        stack[sp - 1] += stack[sp];
+                    } else {
+                        Object left = box(stack[sp - 1], stackRefs[sp - 1]);
+                        Object right = box(stack[sp], stackRefs[sp]);
+                        if (left == null || right == null) {
+                            throw new RuntimeError((Token) refs[token], "Operands must not be nil.");
+                        }
+                        stackRefs[sp - 1] = left.toString() + right.toString();
+                    }
+                    break;
+                }
+                case Chunk.SUM: {
+                    int count = code[ip++];
+                    Token[] operators = (Token[]) refs[code[ip++]];
+                    sp -= count;
+                    int leading = 0;
+                    while (leading < count && stackRefs[sp + leading] == null) leading++;
+                    if (leading == count) {
+                        stack[sp] = Summation.sum(stack, sp, sp + count);
+                    } else {
+                        // Past the first term that isn't a number, the rest
+                        // fold as a chain of ADDs would.
+                        Object value = leading == 0 ? box(0, stackRefs[sp])
+                            : interpreter.binary(operators[leading - 1], Summation.sum(stack, sp, sp + leading),
+                                box(0, stackRefs[sp + leading]));
+                        for (int i = leading + 1; i < count; i++) {
+                            value = interpreter.binary(operators[i - 1], value, box(stack[sp + i], stackRefs[sp + i]));
+                        }
+                        stackRefs[sp] = value == null ? NIL : value;
+                    }
+                    sp++;
+                    break;
+                }
+                case Chunk.SUBTRACT:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case Chunk.MULTIPLY:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case Chunk.DIVIDE:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case Chunk.GREATER:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stackRefs[sp - 1] = stack[sp - 1] > stack[sp];
+                    break;
+                case Chunk.LESS:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stackRefs[sp - 1] = stack[sp - 1] < stack[sp];
+                    break;
+                case Chunk.GREATER_EQUAL:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stackRefs[sp - 1] = stack[sp - 1] >= stack[sp];
+                    break;
+                case Chunk.LESS_EQUAL:
+                    sp = checkNumbers(stackRefs, sp, refs[code[ip++]]);
+                    stackRefs[sp - 1] = stack[sp - 1] <= stack[sp];
+                    break;
+                case Chunk.NEGATE: {
+                    int token = code[ip++];
+                    if (stackRefs[sp - 1] != null) {
+                        throw new RuntimeError((Token) refs[token], "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                }
+                case Chunk.NOT:
+                    stackRefs[sp - 1] = !interpreter.isTruthy(box(stack[sp - 1], stackRefs[sp - 1]));
+                    break;
+                case Chunk.EQUAL:
+                    sp--;
+                    stackRefs[sp - 1] = equal(stack, stackRefs, sp);
+                    break;
+                case Chunk.NOT_EQUAL:
+                    sp--;
+                    stackRefs[sp - 1] = !equal(stack, stackRefs, sp);
+                    break;
+
+                case Chunk.RAINFALL: {
+                    int slot = code[ip++];
+                    sp--;
+                    slotNumbers[slot] = stack[sp];
+                    slotRefs[slot] = stackRefs[sp];
+                    interpreter.printRainfall(box(stack[sp], stackRefs[sp]));
+                    break;
+                }
+                case Chunk.RIVER: {
+                    int slot = code[ip++];
+                    String type = (String) refs[code[ip++]];
+                    slotRefs[slot] = type;
+                    interpreter.printRiver(chunk.slotNames[slot], type);
+                    break;
+                }
+                case Chunk.RIVER_WITH_FLOW: {
+                    int slot = code[ip++];
+                    sp--;
+                    slotNumbers[slot] = stack[sp];
+                    slotRefs[slot] = stackRefs[sp];
+                    interpreter.printRiverWithFlow(chunk.slotNames[slot], box(stack[sp], stackRefs[sp]));
+                    break;
+                }
+                case Chunk.FLOWS:
+                    interpreter.printRiverFlow((String) refs[code[ip++]], (String) refs[code[ip++]]);
+                    break;
+                case Chunk.COMBINE:
+                    interpreter.printCombination((String) refs[code[ip++]], (String) refs[code[ip++]]);
+                    break;
+                case Chunk.COMBINATION: {
+                    int slot = code[ip++];
+                    sp--;
+                    slotNumbers[slot] = stack[sp];
+                    slotRefs[slot] = stackRefs[sp];
+                    interpreter.printCombinationResult(chunk.slotNames[slot], box(stack[sp], stackRefs[sp]));
+                    break;
+                }
+                case Chunk.PRINT_FLOW:
+                    sp--;
+                    interpreter.printFlow((String) refs[code[ip++]], box(stack[sp], stackRefs[sp]));
+                    break;
+                case Chunk.PRINT_RESULT:
+                    sp--;
+                    interpreter.printResult(box(stack[sp], stackRefs[sp]));
+                    break;
+                case Chunk.LABEL:
+                    interpreter.label((String) refs[code[ip++]], (String) refs[code[ip++]]);
+                    break;
+            }
+        }
+    }
+
+    private static int checkNumbers(Object[] stackRefs, int sp, Object operator) {
+        sp--;
+        if (stackRefs[sp - 1] != null || stackRefs[sp] != null) {
+            throw new RuntimeError((Token) operator, "Operands must be numbers.");
+        }
+        return sp;
+    }
+
+    private boolean equal(double[] stack, Object[] stackRefs, int sp) {
+        Object left = stackRefs[sp - 1];
+        Object right = stackRefs[sp];
+        if (left == null && right == null) {
+            // Same semantics as Double.equals, which the tree walker uses.
+            return Double.doubleToLongBits(stack[sp - 1]) == Double.doubleToLongBits(stack[sp]);
+        }
+        if (left == null || right == null) return false;
+        return interpreter.isEqual(box(0, left), box(0, right));
+    }
+
+    private static Object box(double number, Object ref) {
+        if (ref == null) return number;
+        if (ref == NIL) return null;
+        return ref;
+    }
+}
@@ -0,0 +1,55 @@
+package Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Runs each script through both the tree walker and the bytecode VM and
+// reports any difference in their output.
+class VmCheck {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: vmcheck [script...]");
+            System.exit(64);
+        }
+
+        int failures = 0;
+        for (String path : args) {
+            String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+            Context parsing = new Context();
+            List<Stmt> statements = new Parser(new Scanner(source, parsing).scanTokens(), parsing).parseStatements();
+            if (parsing.hadError) {
+                System.out.println("SKIP " + path + " (syntax error)");
+                continue;
+            }
+
+            String expected = capture(context -> new Interpreter(context).interpret(statements));
+            String actual = capture(context -> {
+                Interpreter interpreter = new Interpreter(context);
+                interpreter.interpret(() -> new VM(interpreter).run(new BytecodeCompiler(interpreter).compile(statements)));
+            });
+
+            if (expected.equals(actual)) {
+                System.out.println("OK   " + path);
+            } else {
+                System.out.println("FAIL " + path);
+                System.out.println("--- tree walker\n" + expected + "--- vm\n" + actual);
+                failures++;
+            }
+        }
+
+        if (failures > 0) System.exit(1);
+    }
+
+    private static String capture(Consumer<Context> run) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream capture = new PrintStream(buffer, true);
+        run.accept(new Context(capture, capture));
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,227 @@
+package Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Re-runs a script each time it is saved, redoing only what the edit
+// touched. The source is split into chunks at top-level statement
+// boundaries. Chunks whose text and first line are unchanged keep their
+// parsed statements; the rest are scanned and parsed again. Execution
+// restarts from the last checkpoint, a fork of the interpreter taken on an
+// earlier run, before the first changed chunk, and the output of the
+// chunks before that is replayed, so each run prints what a full run
+// would.
+class Watcher {
+    // Checkpoints are kept at most this many chunks apart.
+    private static final int MAX_CHECKPOINTS = 64;
+    private static final int MIN_CHECKPOINT_INTERVAL = 16;
+    // Editors often save in several steps; changes this close together are one edit.
+    private static final long SETTLE_MILLIS = 50;
+
+    private static final class Chunk {
+        final String text;
+        final int line;
+        final List<Stmt> statements;
+        final List<String> diagnostics;
+        final boolean hadError;
+        // Output of the chunk on the last run, or null if it didn't run.
+        String output = null;
+
+        Chunk(String text, int line) {
+            this.text = text;
+            this.line = line;
+            Context context = Context.silent();
+            List<Token> tokens = new Scanner(text, line, context).scanTokens();
+            Parser parser = new Parser(tokens, context);
+            statements = parser.parseStatements();
+            // Chunks run on their own, so they can't bring in other files.
+            for (Parser.Import i : parser.imports) {
+                context.error(i.path, "Can't import while watching.");
+            }
+            diagnostics = context.diagnostics;
+            hadError = context.hadError;
+        }
+    }
+
+    private final Path path;
+    private final Function<Context, Interpreter> interpreters;
+    private List<Chunk> chunks = new ArrayList<>();
+    // Interpreter states before the chunk with each index, never run themselves.
+    private final TreeMap<Integer, Interpreter> checkpoints = new TreeMap<>();
+    // Chunks at the front that ran to completion on the last run.
+    private int executed = 0;
+    // Chunks scanned and parsed by the last update.
+    private int parsed = 0;
+    private String previous = null;
+
+    Watcher(Path path, Function<Context, Interpreter> interpreters) {
+        this.path = path;
+        this.interpreters = interpreters;
+        checkpoints.put(0, interpreters.apply(new Context()));
+    }
+
+    void watch() throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            run();
+            for (;;) {
+                WatchKey key = service.take();
+                boolean touched = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        touched |= path.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (touched) run();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() throws IOException {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        } catch (NoSuchFileException e) {
+            // Mid-save; the write that follows triggers another run.
+            return;
+        }
+        if (source.equals(previous)) return;
+        previous = source;
+
+        long started = System.nanoTime();
+        int first = update(source);
+
+        boolean hadError = false;
+        for (Chunk chunk : chunks) {
+            for (String diagnostic : chunk.diagnostics) System.err.println(diagnostic);
+            hadError |= chunk.hadError;
+        }
+        List<Stmt> statements = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            statements.addAll(chunk.statements);
+        }
+        if (!hadError) {
+            Context checking = new Context();
+            new TypeChecker(checking).check(statements);
+            hadError = checking.hadError;
+        }
+
+        System.out.println("== " + path);
+        String ran = "not run";
+        if (!hadError) {
+            ran = "ran from chunk " + execute(first);
+            for (Chunk chunk : chunks) {
+                if (chunk.output != null) System.out.print(chunk.output);
+            }
+        }
+        System.err.printf("[watch] %d of %d chunks parsed, %s in %.1f ms%n",
+            parsed, chunks.size(), ran, (System.nanoTime() - started) / 1e6);
+    }
+
+    // Splits the new source into chunks, reusing the unchanged ones, and
+    // returns the index of the first chunk whose results are stale.
+    private int update(String source) {
+        List<String> texts = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        int start = 0;
+        int line = 1;
+        List<Integer> ends = Scanner.statementEnds(source);
+        if (ends.isEmpty() || ends.get(ends.size() - 1) < source.length()) ends.add(source.length());
+        for (int end : ends) {
+            String text = source.substring(start, end);
+            texts.add(text);
+            lines.add(line);
+            line += newlines(text);
+            start = end;
+        }
+
+        int prefix = 0;
+        while (prefix < chunks.size() && prefix < texts.size() && chunks.get(prefix).text.equals(texts.get(prefix))) {
+            prefix++;
+        }
+        // A chunk after the edit is reused only if it still starts on the same
+        // line, since its tokens carry their line numbers.
+        int suffix = 0;
+        while (suffix < chunks.size() - prefix && suffix < texts.size() - prefix) {
+            Chunk old = chunks.get(chunks.size() - 1 - suffix);
+            int index = texts.size() - 1 - suffix;
+            if (!old.text.equals(texts.get(index)) || old.line != lines.get(index)) break;
+            suffix++;
+        }
+
+        List<Chunk> updated = new ArrayList<>(chunks.subList(0, prefix));
+        for (int i = prefix; i < texts.size() - suffix; i++) {
+            updated.add(new Chunk(texts.get(i), lines.get(i)));
+        }
+        parsed = texts.size() - suffix - prefix;
+        for (int i = chunks.size() - suffix; i < chunks.size(); i++) {
+            Chunk old = chunks.get(i);
+            old.output = null;
+            updated.add(old);
+        }
+        chunks = updated;
+
+        // Results past the edit are stale, and so are checkpoints after it,
+        // whose chunk indices may have moved.
+        executed = Math.min(prefix, executed);
+        checkpoints.tailMap(executed, false).clear();
+        return executed;
+    }
+
+    // Runs the chunks from the last checkpoint at or before the first stale
+    // one, and returns where it started.
+    private int execute(int first) {
+        Map.Entry<Integer, Interpreter> checkpoint = checkpoints.floorEntry(first);
+        int from = checkpoint.getKey();
+        for (int i = from; i < chunks.size(); i++) {
+            chunks.get(i).output = null;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Context context = new Context(new PrintStream(buffer, true), System.err);
+        Interpreter interpreter = checkpoint.getValue().fork(context);
+        int interval = Math.max(MIN_CHECKPOINT_INTERVAL, chunks.size() / MAX_CHECKPOINTS);
+        executed = from;
+        for (int i = from; i < chunks.size(); i++) {
+            if (i > from && i % interval == 0) checkpoints.put(i, interpreter.fork(context));
+
+            Chunk chunk = chunks.get(i);
+            interpreter.interpret(chunk.statements);
+            chunk.output = buffer.toString();
+            buffer.reset();
+            if (context.hadRuntimeError) break;
+            executed = i + 1;
+        }
+        return from;
+    }
+
+    private static int newlines(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}